@@ -0,0 +1,377 @@
+package com.jordanluyke.cloudflareddns.benchmarks;
+
+import com.jordanluyke.cloudflareddns.model.*;
+import com.jordanluyke.cloudflareddns.util.NodeUtil;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.multipart.Attribute;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * In-memory stand-in for the parts of the Cloudflare API that {@code CloudflareApi} uses: zone listing, DNS record
+ * listing with name and type filters, record PUT, the batch endpoint and BIND export and import, with listings
+ * paginated like the real API. Latency, server errors and 429 rate limiting can be injected. Point {@code apiBaseUrl}
+ * at {@link #getBaseUrl()} to use it.
+ * <p>
+ * Run standalone with {@code java -cp benchmarks.jar com.jordanluyke.cloudflareddns.benchmarks.CloudflareSimulator
+ * --zones=50 --records-per-zone=200 --latency-ms=50 --error-rate=0.01 --rate-limit=1200 --rate-limit-window=300}.
+ */
+public class CloudflareSimulator {
+    private static final String basePath = "/client/v4";
+    private static final int maxZonesPerPage = 50;
+    private static final int maxDnsRecordsPerPage = 5000;
+
+    private int zoneCount = 1;
+    private int recordsPerZone = 1;
+    private long latencyMillis = 0;
+    private long latencyJitterMillis = 0;
+    private double errorRate = 0;
+    private int rateLimitRequests = 0;
+    private int rateLimitWindowSeconds = 300;
+
+    private final EventLoopGroup group = new NioEventLoopGroup();
+    private final List<Zone> zones = new ArrayList<>();
+    private final Map<String, Map<String, DnsRecord>> records = new ConcurrentHashMap<>();
+    private final AtomicLong windowStart = new AtomicLong(System.currentTimeMillis());
+    private final AtomicInteger windowRequests = new AtomicInteger(0);
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private Channel channel;
+
+    public CloudflareSimulator zones(int zoneCount) {
+        this.zoneCount = zoneCount;
+        return this;
+    }
+
+    public CloudflareSimulator recordsPerZone(int recordsPerZone) {
+        this.recordsPerZone = recordsPerZone;
+        return this;
+    }
+
+    /**
+     * Delay before each response, varied uniformly by up to the jitter either way.
+     */
+    public CloudflareSimulator latency(long latencyMillis, long latencyJitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.latencyJitterMillis = latencyJitterMillis;
+        return this;
+    }
+
+    /**
+     * Fraction of requests answered with a 500.
+     */
+    public CloudflareSimulator errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Requests allowed per window before answering 429 with Retry-After. 0 disables the limit.
+     */
+    public CloudflareSimulator rateLimit(int requests, int windowSeconds) {
+        this.rateLimitRequests = requests;
+        this.rateLimitWindowSeconds = windowSeconds;
+        return this;
+    }
+
+    public CloudflareSimulator start(int port) throws InterruptedException {
+        for(int z = 0; z < zoneCount; z++) {
+            Zone zone = new Zone();
+            zone.setId(String.format("%032x", z + 1));
+            zone.setName("zone" + z + ".example.com");
+            zone.setStatus("active");
+            zone.setType("full");
+            zones.add(zone);
+            Map<String, DnsRecord> zoneRecords = new LinkedHashMap<>();
+            for(int r = 0; r < recordsPerZone; r++) {
+                DnsRecord record = Fixtures.dnsRecord(zone.getId(), z * recordsPerZone + r);
+                record.setName("host" + r + "." + zone.getName());
+                record.setZoneName(zone.getName());
+                zoneRecords.put(record.getId(), record);
+            }
+            records.put(zone.getId(), Collections.synchronizedMap(zoneRecords));
+        }
+        channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(16 * 1024 * 1024));
+                        ch.pipeline().addLast(new RequestHandler());
+                    }
+                })
+                .bind("127.0.0.1", port)
+                .sync()
+                .channel();
+        return this;
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + ((InetSocketAddress) channel.localAddress()).getPort() + basePath;
+    }
+
+    public String getStats() {
+        return "requests=" + requests.sum() + " rateLimited=" + rateLimited.sum() + " errors=" + errors.sum();
+    }
+
+    public void close() {
+        channel.close().syncUninterruptibly();
+        group.shutdownGracefully();
+    }
+
+    private class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
+            requests.increment();
+            FullHttpResponse response = respond(msg);
+            HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(msg));
+            long delay = latencyMillis + (latencyJitterMillis > 0 ? ThreadLocalRandom.current().nextLong(-latencyJitterMillis, latencyJitterMillis + 1) : 0);
+            if(delay > 0)
+                ctx.executor().schedule(() -> ctx.writeAndFlush(response), delay, TimeUnit.MILLISECONDS);
+            else
+                ctx.writeAndFlush(response);
+        }
+
+        private FullHttpResponse respond(FullHttpRequest msg) {
+            if(msg.headers().get(HttpHeaderNames.AUTHORIZATION) == null)
+                return error(HttpResponseStatus.UNAUTHORIZED, 10000, "Authentication error");
+            Optional<Long> retryAfter = checkRateLimit();
+            if(retryAfter.isPresent()) {
+                rateLimited.increment();
+                FullHttpResponse response = error(HttpResponseStatus.TOO_MANY_REQUESTS, 971, "Please wait and consider throttling your request speed");
+                response.headers().set(HttpHeaderNames.RETRY_AFTER, retryAfter.get());
+                return response;
+            }
+            if(errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.increment();
+                return error(HttpResponseStatus.INTERNAL_SERVER_ERROR, 10001, "Internal error");
+            }
+
+            QueryStringDecoder decoder = new QueryStringDecoder(msg.uri());
+            String path = decoder.path();
+            if(!path.startsWith(basePath))
+                return error(HttpResponseStatus.NOT_FOUND, 7000, "No route for that URI");
+            String[] segments = path.substring(basePath.length() + 1).split("/");
+            Map<String, String> params = decoder.parameters()
+                    .entrySet()
+                    .stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().get(0)));
+            HttpMethod method = msg.method();
+            try {
+                if(segments.length == 1 && segments[0].equals("zones") && method == HttpMethod.GET)
+                    return listZones(params);
+                if(segments.length < 3 || !segments[0].equals("zones") || !segments[2].equals("dns_records"))
+                    return error(HttpResponseStatus.NOT_FOUND, 7000, "No route for that URI");
+                Map<String, DnsRecord> zoneRecords = records.get(segments[1]);
+                if(zoneRecords == null)
+                    return error(HttpResponseStatus.NOT_FOUND, 7003, "Could not route to /zones/" + segments[1]);
+                if(segments.length == 3 && method == HttpMethod.GET)
+                    return listDnsRecords(zoneRecords, params);
+                if(segments.length == 4 && segments[3].equals("batch") && method == HttpMethod.POST)
+                    return batch(zoneRecords, read(msg, DnsRecordBatchRequest.class));
+                if(segments.length == 4 && segments[3].equals("export") && method == HttpMethod.GET)
+                    return export(zoneRecords);
+                if(segments.length == 4 && segments[3].equals("import") && method == HttpMethod.POST)
+                    return importRecords(segments[1], zoneRecords, msg);
+                if(segments.length == 4 && method == HttpMethod.PUT)
+                    return put(zoneRecords, segments[3], read(msg, DnsRecordRequest.class));
+            } catch(IOException e) {
+                return error(HttpResponseStatus.BAD_REQUEST, 9207, "Request body is invalid");
+            }
+            return error(HttpResponseStatus.NOT_FOUND, 7000, "No route for that URI");
+        }
+
+        private FullHttpResponse listZones(Map<String, String> params) {
+            List<Zone> matches = zones.stream()
+                    .filter(zone -> !params.containsKey("name") || zone.getName().equals(params.get("name")))
+                    .collect(Collectors.toList());
+            return page(matches, params, maxZonesPerPage);
+        }
+
+        private FullHttpResponse listDnsRecords(Map<String, DnsRecord> zoneRecords, Map<String, String> params) {
+            List<DnsRecord> matches;
+            synchronized(zoneRecords) {
+                matches = zoneRecords.values()
+                        .stream()
+                        .filter(record -> !params.containsKey("name") || record.getName().equals(params.get("name")))
+                        .filter(record -> !params.containsKey("type") || record.getType().equals(params.get("type")))
+                        .collect(Collectors.toList());
+            }
+            return page(matches, params, maxDnsRecordsPerPage);
+        }
+
+        private FullHttpResponse put(Map<String, DnsRecord> zoneRecords, String recordId, DnsRecordRequest request) {
+            DnsRecord record = zoneRecords.get(recordId);
+            if(record == null)
+                return error(HttpResponseStatus.NOT_FOUND, 81044, "Record does not exist");
+            return ok(apply(record, request), null);
+        }
+
+        private FullHttpResponse batch(Map<String, DnsRecord> zoneRecords, DnsRecordBatchRequest request) {
+            // Batches are atomic, so nothing is applied unless every record exists
+            if(request.getPuts().stream().anyMatch(put -> !zoneRecords.containsKey(put.getId())))
+                return error(HttpResponseStatus.NOT_FOUND, 81044, "Record does not exist");
+            DnsRecordBatchResult result = new DnsRecordBatchResult();
+            request.getPuts().forEach(put -> result.getPuts().add(apply(zoneRecords.get(put.getId()), put)));
+            return ok(result, null);
+        }
+
+        private FullHttpResponse export(Map<String, DnsRecord> zoneRecords) {
+            StringBuilder zoneFile = new StringBuilder(";; Exported by the Cloudflare simulator\n");
+            synchronized(zoneRecords) {
+                zoneRecords.values().forEach(record -> {
+                    zoneFile.append(record.getName()).append(".\t").append(record.getTtl()).append("\tIN\t").append(record.getType()).append("\t").append(record.getContent());
+                    if(record.isProxied())
+                        zoneFile.append(" ; cf_tags=cf-proxied:true");
+                    zoneFile.append("\n");
+                });
+            }
+            byte[] bytes = zoneFile.toString().getBytes(StandardCharsets.UTF_8);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(bytes));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.TEXT_PLAIN);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, bytes.length);
+            return response;
+        }
+
+        /**
+         * Adds the records of an uploaded zone file. Only lines of the form {@code name ttl IN type content} are read.
+         */
+        private FullHttpResponse importRecords(String zoneId, Map<String, DnsRecord> zoneRecords, FullHttpRequest msg) throws IOException {
+            HttpPostRequestDecoder decoder = new HttpPostRequestDecoder(msg);
+            try {
+                InterfaceHttpData file = decoder.getBodyHttpData("file");
+                if(!(file instanceof FileUpload))
+                    return error(HttpResponseStatus.BAD_REQUEST, 81042, "No file uploaded");
+                InterfaceHttpData proxiedField = decoder.getBodyHttpData("proxied");
+                boolean proxied = proxiedField instanceof Attribute && Boolean.parseBoolean(((Attribute) proxiedField).getValue());
+                String zoneName = zones.stream()
+                        .filter(zone -> zone.getId().equals(zoneId))
+                        .map(Zone::getName)
+                        .findFirst()
+                        .orElse("");
+                int parsed = 0;
+                for(String line : ((FileUpload) file).getString(StandardCharsets.UTF_8).split("\n")) {
+                    String[] fields = line.split(";", 2)[0].trim().split("\\s+");
+                    if(fields.length < 5 || !fields[2].equals("IN"))
+                        continue;
+                    parsed++;
+                    DnsRecord record = new DnsRecord();
+                    record.setId(UUID.randomUUID().toString().replace("-", ""));
+                    record.setName(fields[0].replaceAll("\\.$", ""));
+                    record.setTtl(Integer.parseInt(fields[1]));
+                    record.setType(fields[3]);
+                    record.setContent(String.join(" ", Arrays.asList(fields).subList(4, fields.length)));
+                    record.setProxiable(Arrays.asList("A", "AAAA", "CNAME").contains(record.getType()));
+                    record.setProxied(proxied && record.isProxiable());
+                    record.setZoneId(zoneId);
+                    record.setZoneName(zoneName);
+                    zoneRecords.put(record.getId(), record);
+                }
+                return ok(new DnsRecordImportResult(parsed, parsed), null);
+            } catch(NumberFormatException | HttpPostRequestDecoder.ErrorDataDecoderException e) {
+                return error(HttpResponseStatus.BAD_REQUEST, 81043, "Zone file is invalid");
+            } finally {
+                decoder.destroy();
+            }
+        }
+
+        private DnsRecord apply(DnsRecord record, DnsRecordRequest request) {
+            synchronized(record) {
+                record.setType(request.getType());
+                record.setName(request.getName());
+                record.setContent(request.getContent());
+                record.setProxied(request.isProxied());
+                return record;
+            }
+        }
+
+        private <T> FullHttpResponse page(List<T> items, Map<String, String> params, int maxPerPage) {
+            int perPage = Math.max(1, Math.min(maxPerPage, Integer.parseInt(params.getOrDefault("per_page", "20"))));
+            int page = Math.max(1, Integer.parseInt(params.getOrDefault("page", "1")));
+            int from = Math.min(items.size(), (page - 1) * perPage);
+            List<T> result = items.subList(from, Math.min(items.size(), from + perPage));
+            return ok(result, new ResultInfo(page, perPage, result.size(), items.size(), (items.size() + perPage - 1) / perPage));
+        }
+
+        private <T> T read(FullHttpRequest msg, Class<T> clazz) throws IOException {
+            return NodeUtil.mapper.readValue((InputStream) new ByteBufInputStream(msg.content()), clazz);
+        }
+
+        private FullHttpResponse ok(Object result, ResultInfo resultInfo) {
+            return json(HttpResponseStatus.OK, new CloudflareResponse<>(true, new ArrayList<>(), new ArrayList<>(), result, resultInfo));
+        }
+
+        private FullHttpResponse error(HttpResponseStatus status, int code, String message) {
+            List<CloudflareError> errors = new ArrayList<>(Collections.singletonList(new CloudflareError(code, message)));
+            return json(status, new CloudflareResponse<>(false, errors, new ArrayList<>(), null, null));
+        }
+
+        private FullHttpResponse json(HttpResponseStatus status, Object body) {
+            byte[] bytes = NodeUtil.writeValueAsBytes(body);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, Unpooled.wrappedBuffer(bytes));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, bytes.length);
+            return response;
+        }
+    }
+
+    /**
+     * Counts the request against a fixed window, returning the seconds until the window resets when over the limit.
+     */
+    private Optional<Long> checkRateLimit() {
+        if(rateLimitRequests <= 0)
+            return Optional.empty();
+        long now = System.currentTimeMillis();
+        long windowMillis = TimeUnit.SECONDS.toMillis(rateLimitWindowSeconds);
+        long start = windowStart.get();
+        if(now - start >= windowMillis && windowStart.compareAndSet(start, now)) {
+            windowRequests.set(0);
+            start = now;
+        }
+        if(windowRequests.incrementAndGet() <= rateLimitRequests)
+            return Optional.empty();
+        return Optional.of(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(start + windowMillis - now)));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = Arrays.stream(args)
+                .filter(arg -> arg.startsWith("--") && arg.contains("="))
+                .collect(Collectors.toMap(arg -> arg.substring(2, arg.indexOf('=')), arg -> arg.substring(arg.indexOf('=') + 1)));
+        CloudflareSimulator simulator = new CloudflareSimulator()
+                .zones(Integer.parseInt(options.getOrDefault("zones", "50")))
+                .recordsPerZone(Integer.parseInt(options.getOrDefault("records-per-zone", "200")))
+                .latency(Long.parseLong(options.getOrDefault("latency-ms", "0")), Long.parseLong(options.getOrDefault("latency-jitter-ms", "0")))
+                .errorRate(Double.parseDouble(options.getOrDefault("error-rate", "0")))
+                .rateLimit(Integer.parseInt(options.getOrDefault("rate-limit", "0")), Integer.parseInt(options.getOrDefault("rate-limit-window", "300")))
+                .start(Integer.parseInt(options.getOrDefault("port", "8787")));
+        System.out.println("Cloudflare simulator listening, set apiBaseUrl to " + simulator.getBaseUrl());
+        while(true) {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(10));
+            System.out.println(simulator.getStats());
+        }
+    }
+}
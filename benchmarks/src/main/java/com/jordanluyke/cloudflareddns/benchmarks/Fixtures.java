@@ -0,0 +1,47 @@
+package com.jordanluyke.cloudflareddns.benchmarks;
+
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jordanluyke.cloudflareddns.model.DnsRecord;
+import com.jordanluyke.cloudflareddns.util.NodeUtil;
+
+public class Fixtures {
+
+    public static DnsRecord dnsRecord(String zoneId, int i) {
+        DnsRecord record = new DnsRecord();
+        record.setId(String.format("%032x", i));
+        record.setType("A");
+        record.setName("host" + i + ".example.com");
+        record.setContent("203.0.113." + (i % 256));
+        record.setProxiable(true);
+        record.setProxied(true);
+        record.setTtl(1);
+        record.setZoneId(zoneId);
+        record.setZoneName("example.com");
+        record.setCreatedOn("2021-01-01T00:00:00.000000Z");
+        record.setModifiedOn("2021-01-01T00:00:00.000000Z");
+        return record;
+    }
+
+    /**
+     * Body of a dns_records listing holding the given number of records.
+     */
+    public static byte[] dnsRecordsResponse(int count) {
+        ArrayNode result = NodeUtil.mapper.createArrayNode();
+        for(int i = 0; i < count; i++)
+            result.add(NodeUtil.parseObjectIntoNode(dnsRecord("zone", i)));
+        ObjectNode resultInfo = NodeUtil.mapper.createObjectNode();
+        resultInfo.put("page", 1);
+        resultInfo.put("per_page", count);
+        resultInfo.put("count", count);
+        resultInfo.put("total_count", count);
+        resultInfo.put("total_pages", 1);
+        ObjectNode body = NodeUtil.mapper.createObjectNode();
+        body.put("success", true);
+        body.set("errors", NodeUtil.mapper.createArrayNode());
+        body.set("messages", NodeUtil.mapper.createArrayNode());
+        body.set("result", result);
+        body.set("result_info", resultInfo);
+        return NodeUtil.writeValueAsBytes(body);
+    }
+}
@@ -0,0 +1,74 @@
+package com.jordanluyke.cloudflareddns.benchmarks;
+
+import com.jordanluyke.cloudflareddns.util.NettyHttpClient;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.reactivex.rxjava3.core.Observable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request throughput and latency of {@link NettyHttpClient} against a local HTTPS server, over pooled keep-alive
+ * HTTP/1.1 connections or streams on one HTTP/2 connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpClientBenchmark {
+    @Param({"1024"})
+    public int bodySize;
+
+    @Param({"false", "true"})
+    public boolean http2;
+
+    private HttpsTestServer server;
+    private NettyHttpClient httpClient;
+    private String url;
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] json = ("{\"success\":true,\"result\":\"" + "x".repeat(Math.max(0, bodySize - 29)) + "\"}").getBytes();
+        server = new HttpsTestServer(json);
+        httpClient = new NettyHttpClient();
+        httpClient.setTrustManagerFactory(InsecureTrustManagerFactory.INSTANCE);
+        httpClient.setHttp2(http2);
+        url = server.getUrl() + "/client/v4/zones";
+        // Opens the pooled connection so the TLS handshake is not measured
+        httpClient.get(url).blockingGet().release();
+    }
+
+    @TearDown
+    public void tearDown() {
+        httpClient.close();
+        server.close();
+    }
+
+    @Benchmark
+    public int request() {
+        NettyHttpClient.ClientResponse res = httpClient.get(url).blockingGet();
+        try {
+            return res.getStatusCode();
+        } finally {
+            res.release();
+        }
+    }
+
+    /**
+     * Eight requests in flight at once, as when several records are reconciled concurrently.
+     */
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public long concurrentRequests() {
+        return Observable.range(0, 8)
+                .flatMapSingle(i -> httpClient.get(url)
+                        .map(res -> {
+                            res.release();
+                            return res.getStatusCode();
+                        }))
+                .count()
+                .blockingGet();
+    }
+}
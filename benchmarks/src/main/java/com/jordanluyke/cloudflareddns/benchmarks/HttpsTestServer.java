@@ -0,0 +1,95 @@
+package com.jordanluyke.cloudflareddns.benchmarks;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.ssl.*;
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.net.InetSocketAddress;
+
+/**
+ * In-process HTTPS server on a random local port that answers every request with the same JSON body. Speaks HTTP/2
+ * to clients that offer it through ALPN and HTTP/1.1 to the rest.
+ */
+public class HttpsTestServer {
+    private final EventLoopGroup group = new NioEventLoopGroup(1);
+    private final Channel channel;
+
+    public HttpsTestServer(byte[] body) throws Exception {
+        SelfSignedCertificate certificate = new SelfSignedCertificate("localhost");
+        SslContext sslCtx = SslContextBuilder.forServer(certificate.certificate(), certificate.privateKey())
+                .applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2,
+                        ApplicationProtocolNames.HTTP_1_1))
+                .build();
+        channel = new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(sslCtx.newHandler(ch.alloc()));
+                        ch.pipeline().addLast(new ApplicationProtocolNegotiationHandler(ApplicationProtocolNames.HTTP_1_1) {
+                            @Override
+                            protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                                if(ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                                    ctx.pipeline().addLast(Http2FrameCodecBuilder.forServer().build());
+                                    ctx.pipeline().addLast(new Http2MultiplexHandler(new ChannelInitializer<Http2StreamChannel>() {
+                                        @Override
+                                        protected void initChannel(Http2StreamChannel stream) {
+                                            stream.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true));
+                                            stream.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                                            stream.pipeline().addLast(new ResponseHandler(body));
+                                        }
+                                    }));
+                                } else {
+                                    ctx.pipeline().addLast(new HttpServerCodec());
+                                    ctx.pipeline().addLast(new HttpObjectAggregator(1024 * 1024));
+                                    ctx.pipeline().addLast(new ResponseHandler(body));
+                                }
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+    }
+
+    public String getUrl() {
+        return "https://localhost:" + ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    public void close() {
+        channel.close().syncUninterruptibly();
+        group.shutdownGracefully();
+    }
+
+    private static class ResponseHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final byte[] body;
+
+        public ResponseHandler(byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, Unpooled.wrappedBuffer(body));
+            response.headers().set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON);
+            response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.length);
+            HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(msg));
+            ctx.writeAndFlush(response);
+        }
+    }
+}
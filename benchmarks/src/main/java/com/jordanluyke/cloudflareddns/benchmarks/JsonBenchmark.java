@@ -0,0 +1,77 @@
+package com.jordanluyke.cloudflareddns.benchmarks;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.jordanluyke.cloudflareddns.model.CloudflareResponse;
+import com.jordanluyke.cloudflareddns.model.DnsRecord;
+import com.jordanluyke.cloudflareddns.util.JsonArrayStreamHandler;
+import com.jordanluyke.cloudflareddns.util.NettyHttpClient;
+import com.jordanluyke.cloudflareddns.util.NodeUtil;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.reactivex.rxjava3.core.Observable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding a dns_records listing of 10 to 10k records: into a tree with {@link NettyHttpClient.ClientResponse#getJsonBody()},
+ * from the tree into records with {@link NodeUtil#parseNodeInto}, and streamed straight into records in 8 KiB chunks
+ * as {@code CloudflareApi} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JsonBenchmark {
+    private static final int chunkSize = 8 * 1024;
+    private static final ObjectReader recordReader = NodeUtil.reader(DnsRecord.class);
+    private static final ObjectReader envelopeReader = NodeUtil.reader(new TypeReference<CloudflareResponse<JsonNode>>() {});
+
+    @Param({"10", "100", "1000", "10000"})
+    public int records;
+
+    private ByteBuf body;
+    private NettyHttpClient.ClientResponse response;
+    private JsonNode result;
+    private final HttpResponse head = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+
+    @Setup
+    public void setup() {
+        body = Unpooled.wrappedBuffer(Fixtures.dnsRecordsResponse(records));
+        response = new NettyHttpClient.ClientResponse();
+        response.setStatusCode(200);
+        response.setBody(body);
+        result = response.getJsonBody().get("result");
+    }
+
+    @Benchmark
+    public JsonNode getJsonBody() {
+        return response.getJsonBody();
+    }
+
+    @Benchmark
+    public DnsRecord[] parseNodeInto() {
+        return NodeUtil.parseNodeInto(DnsRecord[].class, result);
+    }
+
+    @Benchmark
+    public long streamDecode() {
+        return Observable.<DnsRecord>create(emitter -> {
+                    JsonArrayStreamHandler<DnsRecord, CloudflareResponse<JsonNode>> handler = new JsonArrayStreamHandler<>("result", recordReader, envelopeReader, (res, envelope) -> {});
+                    handler.onResponse(head, emitter);
+                    for(int offset = 0; offset < body.readableBytes(); offset += chunkSize)
+                        handler.onContent(body.slice(offset, Math.min(chunkSize, body.readableBytes() - offset)), emitter);
+                    handler.onComplete(emitter);
+                })
+                .count()
+                .blockingGet();
+    }
+}
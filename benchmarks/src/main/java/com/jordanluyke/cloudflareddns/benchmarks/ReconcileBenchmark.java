@@ -0,0 +1,147 @@
+package com.jordanluyke.cloudflareddns.benchmarks;
+
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.jordanluyke.cloudflareddns.*;
+import com.jordanluyke.cloudflareddns.model.*;
+import com.jordanluyke.cloudflareddns.util.NettyHttpClient;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * A full update cycle through {@link Reconciler} against an in-memory stand-in for {@link CloudflareApi}, so only the
+ * daemon's own overhead is measured. The record cache starts warm, as it is after the first cycle.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReconcileBenchmark {
+    @Param({"1", "10"})
+    public int zones;
+
+    @Param({"1", "10", "100"})
+    public int recordsPerZone;
+
+    private Reconciler reconciler;
+    private int cycle = 0;
+
+    @Setup
+    public void setup() {
+        List<ZoneConfig> zoneConfigs = new ArrayList<>();
+        for(int z = 0; z < zones; z++) {
+            ZoneConfig zone = new ZoneConfig();
+            zone.setName("zone" + z + ".example.com");
+            for(int r = 0; r < recordsPerZone; r++)
+                zone.getRecords().add(new RecordConfig("host" + r, "A", true));
+            zoneConfigs.add(zone);
+        }
+        reconciler = Guice.createInjector(binder -> {
+                    binder.bind(Config.class).toInstance(new BenchmarkConfig(zoneConfigs));
+                    binder.bind(RecordCache.class).to(InMemoryRecordCache.class);
+                    binder.bind(CloudflareApi.class).to(InMemoryCloudflareApi.class);
+                })
+                .getInstance(Reconciler.class);
+        reconciler.reconcile(IpFamily.V4, "192.0.2.1").blockingSubscribe();
+    }
+
+    /**
+     * Every record points at the previous IP, so every record is updated.
+     */
+    @Benchmark
+    public long changedIp() {
+        cycle++;
+        return reconciler.reconcile(IpFamily.V4, cycle % 2 == 0 ? "192.0.2.1" : "192.0.2.2")
+                .count()
+                .blockingGet();
+    }
+
+    /**
+     * Every record already holds the IP, the common case between changes.
+     */
+    @Benchmark
+    public long unchangedIp() {
+        return reconciler.reconcile(IpFamily.V4, cycle % 2 == 0 ? "192.0.2.1" : "192.0.2.2")
+                .count()
+                .blockingGet();
+    }
+
+    public static class BenchmarkConfig extends Config {
+        private final List<ZoneConfig> zones;
+
+        public BenchmarkConfig(List<ZoneConfig> zones) {
+            this.zones = zones;
+        }
+
+        @Override
+        public List<ZoneConfig> getZones() {
+            return zones;
+        }
+    }
+
+    /**
+     * Keeps the cache off disk.
+     */
+    public static class InMemoryRecordCache extends RecordCache {
+        @Override
+        public synchronized Completable save() {
+            return Completable.complete();
+        }
+    }
+
+    public static class InMemoryCloudflareApi extends CloudflareApi {
+        private final Map<String, DnsRecord> records = new ConcurrentHashMap<>();
+
+        @Inject
+        public InMemoryCloudflareApi(Config config, NettyHttpClient httpClient, RateLimiter rateLimiter) {
+            super(config, httpClient, rateLimiter);
+        }
+
+        @Override
+        public Observable<Zone> findZoneByName(String name) {
+            Zone zone = new Zone();
+            zone.setId(name);
+            zone.setName(name);
+            return Observable.just(zone);
+        }
+
+        @Override
+        public Observable<DnsRecord> findDnsRecords(String zoneId, String name, String type) {
+            return Observable.just(records.computeIfAbsent(name, key -> {
+                DnsRecord record = Fixtures.dnsRecord(zoneId, records.size());
+                record.setName(name);
+                record.setType(type);
+                return record;
+            }));
+        }
+
+        @Override
+        public Single<DnsRecord> updateDnsRecord(String zoneId, String recordId, String type, String name, String content, boolean proxied) {
+            DnsRecord record = records.get(name);
+            record.setContent(content);
+            return Single.just(record);
+        }
+
+        @Override
+        public Observable<BatchUpdateResult> batchUpdate(String zoneId, List<DnsRecord> updates) {
+            return Observable.fromIterable(updates.stream()
+                    .map(update -> {
+                        DnsRecord record = records.get(update.getName());
+                        record.setContent(update.getContent());
+                        return new BatchUpdateResult(update, record, null);
+                    })
+                    .collect(Collectors.toList()));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.jordanluyke.cloudflareddns.benchmarks;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Scopes;
+import com.jordanluyke.cloudflareddns.*;
+import com.jordanluyke.cloudflareddns.model.*;
+import com.jordanluyke.cloudflareddns.util.NettyHttpClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full update cycle through {@link Reconciler} and the real {@link CloudflareApi} and HTTP client against
+ * {@link CloudflareSimulator}, with injected API latency. Each cycle starts with a cold record cache, so every zone
+ * and record is looked up before the batch updates are sent. The client and its connections are shared by all cycles
+ * of a trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SimulatedReconcileBenchmark {
+    @Param({"50"})
+    public int zones;
+
+    @Param({"200"})
+    public int recordsPerZone;
+
+    @Param({"0", "50"})
+    public long latencyMillis;
+
+    private CloudflareSimulator simulator;
+    private List<ZoneConfig> zoneConfigs;
+    private Injector injector;
+    private Reconciler reconciler;
+    private int cycle = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws InterruptedException {
+        simulator = new CloudflareSimulator()
+                .zones(zones)
+                .recordsPerZone(recordsPerZone)
+                .latency(latencyMillis, latencyMillis / 5)
+                .start(0);
+        zoneConfigs = new ArrayList<>();
+        for(int z = 0; z < zones; z++) {
+            ZoneConfig zone = new ZoneConfig();
+            zone.setName("zone" + z + ".example.com");
+            for(int r = 0; r < recordsPerZone; r++)
+                zone.getRecords().add(new RecordConfig("host" + r, "A", true));
+            zoneConfigs.add(zone);
+        }
+        injector = Guice.createInjector(binder -> {
+            binder.bind(Config.class).toInstance(new SimulatorConfig(zoneConfigs, simulator.getBaseUrl()));
+            binder.bind(RecordCache.class).to(ReconcileBenchmark.InMemoryRecordCache.class).in(Scopes.SINGLETON);
+        });
+        reconciler = injector.getInstance(Reconciler.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void coldCache() {
+        injector.getInstance(RecordCache.class).clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        injector.getInstance(NettyHttpClient.class).close();
+        simulator.close();
+    }
+
+    @Benchmark
+    public long coldCycle() {
+        cycle++;
+        return reconciler.reconcile(IpFamily.V4, cycle % 2 == 0 ? "192.0.2.1" : "192.0.2.2")
+                .count()
+                .blockingGet();
+    }
+
+    /**
+     * Points the API at the simulator and lifts the client side rate limit, which would otherwise pace the lookups
+     * at Cloudflare's real limit and dominate the measurement.
+     */
+    public static class SimulatorConfig extends ReconcileBenchmark.BenchmarkConfig {
+        private final String apiBaseUrl;
+
+        public SimulatorConfig(List<ZoneConfig> zones, String apiBaseUrl) {
+            super(zones);
+            this.apiBaseUrl = apiBaseUrl;
+        }
+
+        @Override
+        public String getApiBaseUrl() {
+            return apiBaseUrl;
+        }
+
+        @Override
+        public String getApiToken() {
+            return "benchmark";
+        }
+
+        @Override
+        public int getRateLimitRequests() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int getRateLimitBurst() {
+            return Integer.MAX_VALUE / 2;
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package com.jordanluyke.cloudflareddns;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectReader;
 import com.google.inject.Inject;
-import com.jordanluyke.cloudflareddns.model.DnsRecord;
-import com.jordanluyke.cloudflareddns.model.Zone;
+import com.jordanluyke.cloudflareddns.model.*;
+import com.jordanluyke.cloudflareddns.util.HttpStatusException;
+import com.jordanluyke.cloudflareddns.util.JsonArrayStreamHandler;
 import com.jordanluyke.cloudflareddns.util.NettyHttpClient;
 import com.jordanluyke.cloudflareddns.util.NodeUtil;
+import com.jordanluyke.cloudflareddns.util.RequestOptions;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
 import io.netty.handler.codec.http.HttpMethod;
 import io.reactivex.rxjava3.core.Observable;
 import io.reactivex.rxjava3.core.Single;
@@ -13,53 +20,267 @@ import lombok.AllArgsConstructor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 @AllArgsConstructor(onConstructor = @__(@Inject))
 public class CloudflareApi {
     private static final Logger logger = LogManager.getLogger(CloudflareApi.class);
-    private final static String baseUrl = "https://api.cloudflare.com/client/v4";
+    private static final int maxZonesPerPage = 50;
+    static final int maxDnsRecordsPerPage = 5000;
+    static final int maxBatchSize = 200;
+    private static final ObjectReader envelopeReader = NodeUtil.reader(new TypeReference<CloudflareResponse<JsonNode>>() {});
+    private static final ObjectReader dnsRecordResponseReader = NodeUtil.reader(new TypeReference<CloudflareResponse<DnsRecord>>() {});
+    private static final ObjectReader batchResponseReader = NodeUtil.reader(new TypeReference<CloudflareResponse<DnsRecordBatchResult>>() {});
+    private static final ObjectReader importResponseReader = NodeUtil.reader(new TypeReference<CloudflareResponse<DnsRecordImportResult>>() {});
 
     private Config config;
     private NettyHttpClient httpClient;
+    private RateLimiter rateLimiter;
 
     public Observable<Zone> getZones() {
-        return request("/zones", HttpMethod.GET)
-                .flatMapObservable(Observable::fromIterable)
-                .map(zone -> NodeUtil.parseNodeInto(Zone.class, zone));
+        return list("/zones", Collections.emptyMap(), maxZonesPerPage, Zone.class);
     }
 
     public Observable<DnsRecord> getDnsRecords(String zoneId) {
-        return request("/zones/" + zoneId + "/dns_records", HttpMethod.GET)
-                .flatMapObservable(Observable::fromIterable)
-                .map(record -> NodeUtil.parseNodeInto(DnsRecord.class, record));
+        return list("/zones/" + zoneId + "/dns_records", Collections.emptyMap(), maxDnsRecordsPerPage, DnsRecord.class);
     }
 
+    public Observable<Zone> findZoneByName(String name) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("name", name);
+        return list("/zones", params, maxZonesPerPage, Zone.class);
+    }
+
+    public Observable<DnsRecord> findDnsRecords(String zoneId, String name, String type) {
+        Map<String, Object> params = new HashMap<>();
+        params.put("name", name);
+        if(type != null)
+            params.put("type", type);
+        return list("/zones/" + zoneId + "/dns_records", params, maxDnsRecordsPerPage, DnsRecord.class);
+    }
+
+    /**
+     * Cached listings of the zone's records are dropped before the result is passed on, whether or not the update
+     * succeeded.
+     */
     public Single<DnsRecord> updateDnsRecord(String zoneId, String recordId, String type, String name, String content, boolean proxied) {
-        Map<String, Object> body = new HashMap<>();
-        body.put("type", type);
-        body.put("name", name);
-        body.put("content", content);
-        body.put("proxied", proxied);
-        return request("/zones/" + zoneId + "/dns_records/" + recordId, HttpMethod.PUT, body)
-                .map(r -> NodeUtil.parseNodeInto(DnsRecord.class, r));
+        DnsRecordRequest body = new DnsRecordRequest(type, name, content, proxied);
+        return this.<DnsRecord>request("/zones/" + zoneId + "/dns_records/" + recordId, HttpMethod.PUT, body, dnsRecordResponseReader)
+                .doOnTerminate(() -> invalidateDnsRecords(zoneId))
+                .doOnDispose(() -> invalidateDnsRecords(zoneId));
+    }
+
+    /**
+     * Updates records through the zone's batch endpoint, split into chunks of {@link Config#getBatchSize()}. Each
+     * chunk is applied atomically, so when a chunk fails every record in it is reported with that error. Cached
+     * listings of the zone's records are dropped as each chunk finishes.
+     */
+    public Observable<BatchUpdateResult> batchUpdate(String zoneId, List<DnsRecord> records) {
+        return Observable.range(0, (records.size() + config.getBatchSize() - 1) / config.getBatchSize())
+                .map(i -> records.subList(i * config.getBatchSize(), Math.min(records.size(), (i + 1) * config.getBatchSize())))
+                .concatMap(chunk -> {
+                    List<DnsRecordRequest> puts = chunk.stream()
+                            .map(record -> new DnsRecordRequest(record.getId(), record.getType(), record.getName(), record.getContent(), record.isProxied()))
+                            .collect(Collectors.toList());
+                    return this.<DnsRecordBatchResult>request("/zones/" + zoneId + "/dns_records/batch", HttpMethod.POST, new DnsRecordBatchRequest(puts), batchResponseReader)
+                            .doOnTerminate(() -> invalidateDnsRecords(zoneId))
+                            .doOnDispose(() -> invalidateDnsRecords(zoneId))
+                            .flatMapObservable(result -> {
+                                Map<String, DnsRecord> updated = result.getPuts()
+                                        .stream()
+                                        .collect(Collectors.toMap(DnsRecord::getId, record -> record, (a, b) -> b));
+                                return Observable.fromIterable(chunk)
+                                        .map(record -> updated.containsKey(record.getId())
+                                                ? new BatchUpdateResult(record, updated.get(record.getId()), null)
+                                                : new BatchUpdateResult(record, null, new RuntimeException("Record missing from batch result")));
+                            })
+                            .onErrorResumeNext(err -> Observable.fromIterable(chunk)
+                                    .map(record -> new BatchUpdateResult(record, null, err)));
+                });
+    }
+
+    /**
+     * Streams every record of the zone to a file in BIND format. Progress is emitted as the file is written.
+     */
+    public Observable<NettyHttpClient.DownloadProgress> exportZone(String zoneId, Path path) {
+        return withRetries(httpClient.download(config.getApiBaseUrl() + "/zones/" + zoneId + "/dns_records/export", path, getHeaders(), httpClient.getDefaultOptions().withDeadlineMillis(0))
+                .onErrorResumeNext(err -> {
+                    if(!(err instanceof HttpStatusException))
+                        return Observable.error(err);
+                    HttpStatusException statusErr = (HttpStatusException) err;
+                    return Observable.error(new CloudflareApiException(statusErr.getStatusCode(), null, getRetryAfterSeconds(statusErr.getHeaders().get(HttpHeaderNames.RETRY_AFTER))));
+                }));
+    }
+
+    /**
+     * Adds the records of a BIND file to the zone, uploading the file as it is read. Records are proxied when
+     * the flag is set and their type allows it. Cached listings of the zone's records are dropped before the result
+     * is passed on. An import that may have reached the server is not sent again, as it would add the records twice.
+     */
+    public Single<DnsRecordImportResult> importZone(String zoneId, Path path, boolean proxied) {
+        Map<String, String> fields = new HashMap<>();
+        fields.put("proxied", String.valueOf(proxied));
+        return this.<DnsRecordImportResult>request(httpClient.upload(config.getApiBaseUrl() + "/zones/" + zoneId + "/dns_records/import", fields, "file", path, HttpHeaderValues.TEXT_PLAIN.toString(), getHeaders(), httpClient.getDefaultOptions()), importResponseReader, this::isNeverApplied)
+                .doOnTerminate(() -> invalidateDnsRecords(zoneId))
+                .doOnDispose(() -> invalidateDnsRecords(zoneId));
+    }
+
+    private void invalidateDnsRecords(String zoneId) {
+        httpClient.invalidate(config.getApiBaseUrl() + "/zones/" + zoneId + "/dns_records");
+    }
+
+    private <T> Single<T> request(String path, HttpMethod method, Object body, ObjectReader reader) {
+        return request(httpClient.request(config.getApiBaseUrl() + path, method, body, getHeaders()), reader);
     }
 
-    private Single<JsonNode> request(String path, HttpMethod method) {
-        return request(path, method, Collections.emptyMap());
+    private <T> Single<T> request(Single<NettyHttpClient.ClientResponse> call, ObjectReader reader) {
+        return request(call, reader, this::isRetryable);
     }
 
-    private Single<JsonNode> request(String path, HttpMethod method, Map<String, Object> body) {
-        return httpClient.request(baseUrl + path, method, body, getHeaders())
-                .flatMap(res -> {
-                    if(res.getStatusCode() != 200 || !NodeUtil.getBoolean("success", res.getJsonBody()).orElse(true)) {
-                        logger.error("{}", res);
-                        return Single.error(new RuntimeException("Bad response"));
+    private <T> Single<T> request(Single<NettyHttpClient.ClientResponse> call, ObjectReader reader, Predicate<Throwable> retryable) {
+        return withRetries(call
+                .<T>flatMap(res -> {
+                    try {
+                        CloudflareResponse<T> envelope;
+                        try {
+                            envelope = res.readBody(reader);
+                        } catch(RuntimeException e) {
+                            if(res.getStatusCode() == 200)
+                                throw e;
+                            envelope = null;
+                        }
+                        if(res.getStatusCode() != 200 || envelope == null || !envelope.isSuccess()) {
+                            logger.error("{}", res);
+                            return Single.error(new CloudflareApiException(res.getStatusCode(), envelope != null ? envelope.getErrors() : null, getRetryAfterSeconds(res.getHeader(HttpHeaderNames.RETRY_AFTER.toString()).orElse(null))));
+                        }
+                        return Single.just(envelope.getResult());
+                    } finally {
+                        res.release();
                     }
-                    return Single.just(res.getJsonBody().get("result"));
-                });
+                })
+                .toObservable(), retryable)
+                .singleOrError();
+    }
+
+    /**
+     * Lists every page of a collection. The first page is streamed on its own to learn the page count, then the
+     * remaining pages are fetched concurrently. Items are emitted in arrival order.
+     */
+    private <T> Observable<T> list(String path, Map<String, Object> params, int maxPerPage, Class<T> clazz) {
+        return Observable.defer(() -> {
+            int perPage = Math.min(config.getPerPage(), maxPerPage);
+            AtomicReference<ResultInfo> firstPageInfo = new AtomicReference<>();
+            return Observable.concat(
+                    listPage(path, params, 1, perPage, clazz, firstPageInfo::set),
+                    Observable.defer(() -> {
+                        int totalPages = Optional.ofNullable(firstPageInfo.get())
+                                .map(ResultInfo::getTotalPages)
+                                .orElse(1);
+                        return Observable.range(2, Math.max(0, totalPages - 1))
+                                .flatMap(page -> listPage(path, params, page, perPage, clazz, info -> {}), config.getMaxConcurrentPages());
+                    }));
+        });
+    }
+
+    private <T> Observable<T> listPage(String path, Map<String, Object> params, int page, int perPage, Class<T> clazz, Consumer<ResultInfo> onResultInfo) {
+        ObjectReader reader = NodeUtil.reader(clazz);
+        Map<String, Object> pageParams = new HashMap<>(params);
+        pageParams.put("page", page);
+        pageParams.put("per_page", perPage);
+        RequestOptions options = httpClient.getDefaultOptions().withCacheMaxAgeMillis(TimeUnit.SECONDS.toMillis(config.getApiCacheMaxAgeSeconds()));
+        return withRetries(httpClient.stream(config.getApiBaseUrl() + path, HttpMethod.GET, pageParams, getHeaders(), () -> new JsonArrayStreamHandler<T, CloudflareResponse<JsonNode>>("result", reader, envelopeReader, (response, envelope) -> {
+            int statusCode = response.status().code();
+            if(statusCode != 200 || envelope == null || !envelope.isSuccess()) {
+                logger.error("{} {}", statusCode, envelope);
+                throw new CloudflareApiException(statusCode, envelope != null ? envelope.getErrors() : null, getRetryAfterSeconds(response.headers().get(HttpHeaderNames.RETRY_AFTER)));
+            }
+            if(envelope.getResultInfo() != null)
+                onResultInfo.accept(envelope.getResultInfo());
+        }), options));
+    }
+
+    /**
+     * Sends each attempt through the rate limiter and retries rate limited, server, connection and timeout errors up to
+     * {@link Config#getMaxRetries()} times. The wait honours Retry-After when given and otherwise doubles from
+     * {@link Config#getRetryBaseDelayMillis()} with jitter. A 429 holds back every other call for the same wait. Nothing
+     * is retried once items have been emitted, so a stream is never repeated in part.
+     */
+    private <T> Observable<T> withRetries(Observable<T> call) {
+        return withRetries(call, this::isRetryable);
+    }
+
+    private <T> Observable<T> withRetries(Observable<T> call, Predicate<Throwable> retryable) {
+        return Observable.defer(() -> {
+            AtomicBoolean emitted = new AtomicBoolean(false);
+            AtomicInteger attempts = new AtomicInteger(0);
+            return rateLimiter.acquire()
+                    .andThen(call)
+                    .doOnNext(item -> emitted.set(true))
+                    .retryWhen(errors -> errors.flatMap(err -> {
+                        int attempt = attempts.incrementAndGet();
+                        if(emitted.get() || attempt > config.getMaxRetries() || !retryable.test(err))
+                            return Observable.error(err);
+                        long delayMillis = getRetryDelayMillis(err, attempt);
+                        if(err instanceof CloudflareApiException && ((CloudflareApiException) err).isRateLimited())
+                            rateLimiter.pause(delayMillis, TimeUnit.MILLISECONDS);
+                        logger.warn("Retrying in {}ms: {}", delayMillis, err.getMessage());
+                        return Observable.timer(delayMillis, TimeUnit.MILLISECONDS);
+                    }));
+        });
+    }
+
+    private boolean isRetryable(Throwable err) {
+        if(err instanceof CloudflareApiException)
+            return ((CloudflareApiException) err).isRetryable();
+        return err instanceof IOException || err instanceof TimeoutException || err.getCause() instanceof IOException;
+    }
+
+    /**
+     * Whether the server cannot have acted on the call, because it was rate limited or no connection was made. Only
+     * then is a call that is not idempotent safe to send again.
+     */
+    private boolean isNeverApplied(Throwable err) {
+        if(err instanceof CloudflareApiException)
+            return ((CloudflareApiException) err).isRateLimited();
+        return err instanceof ConnectException || err.getCause() instanceof ConnectException;
+    }
+
+    private long getRetryDelayMillis(Throwable err, int attempt) {
+        if(err instanceof CloudflareApiException) {
+            Optional<Long> retryAfterSeconds = ((CloudflareApiException) err).getRetryAfterSeconds();
+            if(retryAfterSeconds.isPresent())
+                return TimeUnit.SECONDS.toMillis(retryAfterSeconds.get());
+        }
+        long delay = (long) config.getRetryBaseDelayMillis() << Math.min(attempt - 1, 16);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Parses a Retry-After header given either as seconds or as an HTTP date.
+     */
+    private Long getRetryAfterSeconds(String retryAfter) {
+        if(retryAfter == null)
+            return null;
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()));
+        } catch(NumberFormatException e) {
+            Date date = DateFormatter.parseHttpDate(retryAfter);
+            if(date == null)
+                return null;
+            return Math.max(0, TimeUnit.MILLISECONDS.toSeconds(date.getTime() - System.currentTimeMillis()));
+        }
     }
 
     private Map<String, String> getHeaders() {
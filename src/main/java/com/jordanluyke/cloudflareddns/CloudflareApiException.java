@@ -0,0 +1,61 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.jordanluyke.cloudflareddns.model.CloudflareError;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Unsuccessful response from the Cloudflare API.
+ */
+@Getter
+public class CloudflareApiException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final List<CloudflareError> errors;
+    private final Long retryAfterSeconds;
+
+    public CloudflareApiException(int statusCode, List<CloudflareError> errors) {
+        this(statusCode, errors, null);
+    }
+
+    public CloudflareApiException(int statusCode, List<CloudflareError> errors, Long retryAfterSeconds) {
+        super("Bad response: " + statusCode);
+        this.statusCode = statusCode;
+        this.errors = errors != null ? errors : new ArrayList<>();
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * How long the API asked to wait before retrying, from the Retry-After header.
+     */
+    public Optional<Long> getRetryAfterSeconds() {
+        return Optional.ofNullable(retryAfterSeconds);
+    }
+
+    public boolean isNotFound() {
+        return statusCode == 404;
+    }
+
+    public boolean isRateLimited() {
+        return statusCode == 429;
+    }
+
+    public boolean isClientError() {
+        return statusCode >= 400 && statusCode < 500;
+    }
+
+    public boolean isServerError() {
+        return statusCode >= 500;
+    }
+
+    /**
+     * Whether the same request may succeed later. Client errors other than rate limiting will fail the same way again.
+     */
+    public boolean isRetryable() {
+        return isRateLimited() || isServerError();
+    }
+}
@@ -2,6 +2,11 @@ package com.jordanluyke.cloudflareddns;
 
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.jordanluyke.cloudflareddns.model.IpFamily;
+import com.jordanluyke.cloudflareddns.model.IpProviderConfig;
+import com.jordanluyke.cloudflareddns.model.RecordConfig;
+import com.jordanluyke.cloudflareddns.model.ZoneConfig;
+import com.jordanluyke.cloudflareddns.util.IpUtil;
 import com.jordanluyke.cloudflareddns.util.NodeUtil;
 import io.reactivex.rxjava3.core.Completable;
 import lombok.Getter;
@@ -10,10 +15,12 @@ import org.apache.logging.log4j.Logger;
 
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Scanner;
+import java.util.*;
+import java.util.stream.Collectors;
 
 @Getter
 @Singleton
@@ -22,8 +29,55 @@ public class Config {
     public static final Path configPath = Paths.get(System.getProperty("user.home"), "cloudflare-ddns-config.json");
 
     private String apiToken;
-    private String domain;
-    private String recordName;
+    private String apiBaseUrl = "https://api.cloudflare.com/client/v4";
+    private List<ZoneConfig> zones = new ArrayList<>();
+    private int parallelism = 8;
+    private int cacheTtlMinutes = 1440;
+    private int batchSize = 200;
+    private boolean watchInterfaces = false;
+    private String interfaceName;
+    private int interfaceCheckIntervalMillis = 1000;
+    private int maxConnectionsPerHost = 8;
+    private int connectionIdleTimeoutSeconds = 60;
+    private int connectTimeoutMillis = 5000;
+    private int readTimeoutMillis = 30000;
+    private int requestTimeoutMillis = 60000;
+    private boolean http2 = false;
+    private List<String> nameservers = new ArrayList<>();
+    private int responseCacheMaxBytes = 0;
+    private int apiCacheMaxAgeSeconds = 60;
+    private int perPage = 100;
+    private int maxConcurrentPages = 4;
+    private List<IpProviderConfig> ipProviders = new ArrayList<>(Arrays.asList(
+            new IpProviderConfig("https://api.ipify.org/?format=json", "ip"),
+            new IpProviderConfig("https://ipv4.icanhazip.com", null),
+            new IpProviderConfig("https://checkip.amazonaws.com", null),
+            new IpProviderConfig("https://ifconfig.me/ip", null)
+    ));
+    private List<IpProviderConfig> ipv6Providers = new ArrayList<>(Arrays.asList(
+            new IpProviderConfig("https://api6.ipify.org/?format=json", "ip"),
+            new IpProviderConfig("https://ipv6.icanhazip.com", null),
+            new IpProviderConfig("https://v6.ident.me", null)
+    ));
+    private int ipHedgeDelayMillis = 1000;
+    private int ipQuorum = 1;
+    private int updateIntervalSeconds = 300;
+    private int fastUpdateIntervalSeconds = 30;
+    private int fastUpdateWindowSeconds = 600;
+    private int retryIntervalSeconds = 10;
+    private int maxRetryIntervalSeconds = 300;
+    private double intervalJitter = 0.1;
+    private int rateLimitRequests = 1200;
+    private int rateLimitWindowSeconds = 300;
+    private int rateLimitBurst = 100;
+    private int maxRetries = 3;
+    private int retryBaseDelayMillis = 1000;
+    private int metricsPort = 0;
+    private String metricsHost = "127.0.0.1";
+    private int triggerPort = 0;
+    private String triggerHost = "127.0.0.1";
+    private String triggerToken;
+    private int triggerCoalesceMillis = 1000;
 
     public Completable load() {
         try {
@@ -32,8 +86,80 @@ public class Config {
             byte[] bytes = Files.readAllBytes(configPath);
             JsonNode body = NodeUtil.getJsonNode(bytes);
             apiToken = NodeUtil.getString("apiToken", body).orElseThrow(() -> new RuntimeException("Field required: apiToken"));
-            domain = NodeUtil.getString("domain", body).orElseThrow(() -> new RuntimeException("Field required: domain"));
-            recordName = NodeUtil.getString("recordName", body).orElseThrow(() -> new RuntimeException("Field required: recordName"));
+            Optional<List<ZoneConfig>> _zones = NodeUtil.getList("zones", body, ZoneConfig[].class);
+            if(_zones.isPresent())
+                zones = _zones.get();
+            else {
+                String domain = NodeUtil.getString("domain", body).orElseThrow(() -> new RuntimeException("Field required: zones"));
+                String recordName = NodeUtil.getString("recordName", body).orElseThrow(() -> new RuntimeException("Field required: recordName"));
+                zones = new ArrayList<>(Collections.singletonList(newZone(domain, recordName)));
+            }
+            if(zones.isEmpty() || zones.stream().anyMatch(zone -> zone.getName() == null || zone.getRecords().stream().anyMatch(record -> record.getName() == null)))
+                throw new RuntimeException("Field required: zones[].name, zones[].records[].name");
+            if(zones.stream().flatMap(zone -> zone.getRecords().stream()).anyMatch(record -> Arrays.stream(IpFamily.values()).noneMatch(family -> family.getRecordType().equals(record.getType()))))
+                throw new RuntimeException("zones[].records[].type must be A or AAAA");
+            apiBaseUrl = NodeUtil.getString("apiBaseUrl", body).orElse(apiBaseUrl);
+            parallelism = NodeUtil.getInteger("parallelism", body).orElse(parallelism);
+            if(parallelism < 1)
+                throw new RuntimeException("parallelism must be at least 1");
+            cacheTtlMinutes = NodeUtil.getInteger("cacheTtlMinutes", body).orElse(cacheTtlMinutes);
+            batchSize = NodeUtil.getInteger("batchSize", body).orElse(batchSize);
+            if(batchSize < 1 || batchSize > CloudflareApi.maxBatchSize)
+                throw new RuntimeException("batchSize must be between 1 and " + CloudflareApi.maxBatchSize);
+            watchInterfaces = NodeUtil.getBoolean("watchInterfaces", body).orElse(watchInterfaces);
+            interfaceName = NodeUtil.getString("interfaceName", body).orElse(interfaceName);
+            interfaceCheckIntervalMillis = NodeUtil.getInteger("interfaceCheckIntervalMillis", body).orElse(interfaceCheckIntervalMillis);
+            maxConnectionsPerHost = NodeUtil.getInteger("maxConnectionsPerHost", body).orElse(maxConnectionsPerHost);
+            connectionIdleTimeoutSeconds = NodeUtil.getInteger("connectionIdleTimeoutSeconds", body).orElse(connectionIdleTimeoutSeconds);
+            connectTimeoutMillis = NodeUtil.getInteger("connectTimeoutMillis", body).orElse(connectTimeoutMillis);
+            readTimeoutMillis = NodeUtil.getInteger("readTimeoutMillis", body).orElse(readTimeoutMillis);
+            requestTimeoutMillis = NodeUtil.getInteger("requestTimeoutMillis", body).orElse(requestTimeoutMillis);
+            http2 = NodeUtil.getBoolean("http2", body).orElse(http2);
+            nameservers = NodeUtil.getList("nameservers", body, String[].class).orElse(nameservers);
+            nameservers.forEach(nameserver -> IpUtil.parseSocketAddress(nameserver, 53));
+            responseCacheMaxBytes = NodeUtil.getInteger("responseCacheMaxBytes", body).orElse(responseCacheMaxBytes);
+            apiCacheMaxAgeSeconds = NodeUtil.getInteger("apiCacheMaxAgeSeconds", body).orElse(apiCacheMaxAgeSeconds);
+            if(connectTimeoutMillis < 0 || readTimeoutMillis < 0 || requestTimeoutMillis < 0)
+                throw new RuntimeException("Timeouts must not be negative");
+            perPage = NodeUtil.getInteger("perPage", body).orElse(perPage);
+            maxConcurrentPages = NodeUtil.getInteger("maxConcurrentPages", body).orElse(maxConcurrentPages);
+            if(perPage < 1 || perPage > CloudflareApi.maxDnsRecordsPerPage || maxConcurrentPages < 1)
+                throw new RuntimeException("perPage must be between 1 and " + CloudflareApi.maxDnsRecordsPerPage + " and maxConcurrentPages at least 1");
+            ipProviders = NodeUtil.getList("ipProviders", body, IpProviderConfig[].class).orElse(ipProviders);
+            ipv6Providers = NodeUtil.getList("ipv6Providers", body, IpProviderConfig[].class).orElse(ipv6Providers);
+            ipHedgeDelayMillis = NodeUtil.getInteger("ipHedgeDelayMillis", body).orElse(ipHedgeDelayMillis);
+            ipQuorum = NodeUtil.getInteger("ipQuorum", body).orElse(ipQuorum);
+            updateIntervalSeconds = NodeUtil.getInteger("updateIntervalSeconds", body).orElse(updateIntervalSeconds);
+            fastUpdateIntervalSeconds = NodeUtil.getInteger("fastUpdateIntervalSeconds", body).orElse(fastUpdateIntervalSeconds);
+            fastUpdateWindowSeconds = NodeUtil.getInteger("fastUpdateWindowSeconds", body).orElse(fastUpdateWindowSeconds);
+            retryIntervalSeconds = NodeUtil.getInteger("retryIntervalSeconds", body).orElse(retryIntervalSeconds);
+            maxRetryIntervalSeconds = NodeUtil.getInteger("maxRetryIntervalSeconds", body).orElse(maxRetryIntervalSeconds);
+            intervalJitter = NodeUtil.getDecimal("intervalJitter", body).map(BigDecimal::doubleValue).orElse(intervalJitter);
+            if(updateIntervalSeconds < 1 || fastUpdateIntervalSeconds < 1 || retryIntervalSeconds < 1 || maxRetryIntervalSeconds < retryIntervalSeconds)
+                throw new RuntimeException("Intervals must be positive and maxRetryIntervalSeconds at least retryIntervalSeconds");
+            if(intervalJitter < 0 || intervalJitter >= 1)
+                throw new RuntimeException("intervalJitter must be at least 0 and below 1");
+            rateLimitRequests = NodeUtil.getInteger("rateLimitRequests", body).orElse(rateLimitRequests);
+            rateLimitWindowSeconds = NodeUtil.getInteger("rateLimitWindowSeconds", body).orElse(rateLimitWindowSeconds);
+            rateLimitBurst = NodeUtil.getInteger("rateLimitBurst", body).orElse(rateLimitBurst);
+            if(rateLimitRequests < 1 || rateLimitWindowSeconds < 1 || rateLimitBurst < 1 || rateLimitBurst >= rateLimitRequests)
+                throw new RuntimeException("rateLimitRequests, rateLimitWindowSeconds and rateLimitBurst must be positive and rateLimitBurst below rateLimitRequests");
+            maxRetries = NodeUtil.getInteger("maxRetries", body).orElse(maxRetries);
+            retryBaseDelayMillis = NodeUtil.getInteger("retryBaseDelayMillis", body).orElse(retryBaseDelayMillis);
+            metricsPort = NodeUtil.getInteger("metricsPort", body).orElse(metricsPort);
+            metricsHost = NodeUtil.getString("metricsHost", body).orElse(metricsHost);
+            triggerPort = NodeUtil.getInteger("triggerPort", body).orElse(triggerPort);
+            triggerHost = NodeUtil.getString("triggerHost", body).orElse(triggerHost);
+            triggerToken = NodeUtil.getString("triggerToken", body).orElse(triggerToken);
+            triggerCoalesceMillis = NodeUtil.getInteger("triggerCoalesceMillis", body).orElse(triggerCoalesceMillis);
+            if(triggerPort > 0 && (triggerToken == null || triggerToken.isEmpty()))
+                throw new RuntimeException("Field required when triggerPort is set: triggerToken");
+            for(IpFamily family : getFamilies()) {
+                if(getIpProviders(family).isEmpty() || getIpProviders(family).stream().anyMatch(provider -> provider.getUrl() == null))
+                    throw new RuntimeException("Field required: ipProviders[].url, ipv6Providers[].url");
+                if(ipQuorum < 1 || ipQuorum > getIpProviders(family).size())
+                    throw new RuntimeException("ipQuorum must be between 1 and the number of " + family.getLabel() + " providers");
+            }
             logger.info("Config loaded");
             return Completable.complete();
         } catch(IOException e) {
@@ -44,8 +170,48 @@ public class Config {
     public Completable save() {
         ObjectNode node = NodeUtil.mapper.createObjectNode();
         node.put("apiToken", apiToken);
-        node.put("domain", domain);
-        node.put("recordName", recordName);
+        node.set("zones", NodeUtil.parseObjectIntoNode(zones));
+        node.put("apiBaseUrl", apiBaseUrl);
+        node.put("parallelism", parallelism);
+        node.put("cacheTtlMinutes", cacheTtlMinutes);
+        node.put("batchSize", batchSize);
+        node.put("watchInterfaces", watchInterfaces);
+        if(interfaceName != null)
+            node.put("interfaceName", interfaceName);
+        node.put("interfaceCheckIntervalMillis", interfaceCheckIntervalMillis);
+        node.put("maxConnectionsPerHost", maxConnectionsPerHost);
+        node.put("connectionIdleTimeoutSeconds", connectionIdleTimeoutSeconds);
+        node.put("connectTimeoutMillis", connectTimeoutMillis);
+        node.put("readTimeoutMillis", readTimeoutMillis);
+        node.put("requestTimeoutMillis", requestTimeoutMillis);
+        node.put("http2", http2);
+        node.set("nameservers", NodeUtil.parseObjectIntoNode(nameservers));
+        node.put("responseCacheMaxBytes", responseCacheMaxBytes);
+        node.put("apiCacheMaxAgeSeconds", apiCacheMaxAgeSeconds);
+        node.put("perPage", perPage);
+        node.put("maxConcurrentPages", maxConcurrentPages);
+        node.set("ipProviders", NodeUtil.parseObjectIntoNode(ipProviders));
+        node.set("ipv6Providers", NodeUtil.parseObjectIntoNode(ipv6Providers));
+        node.put("ipHedgeDelayMillis", ipHedgeDelayMillis);
+        node.put("ipQuorum", ipQuorum);
+        node.put("updateIntervalSeconds", updateIntervalSeconds);
+        node.put("fastUpdateIntervalSeconds", fastUpdateIntervalSeconds);
+        node.put("fastUpdateWindowSeconds", fastUpdateWindowSeconds);
+        node.put("retryIntervalSeconds", retryIntervalSeconds);
+        node.put("maxRetryIntervalSeconds", maxRetryIntervalSeconds);
+        node.put("intervalJitter", intervalJitter);
+        node.put("rateLimitRequests", rateLimitRequests);
+        node.put("rateLimitWindowSeconds", rateLimitWindowSeconds);
+        node.put("rateLimitBurst", rateLimitBurst);
+        node.put("maxRetries", maxRetries);
+        node.put("retryBaseDelayMillis", retryBaseDelayMillis);
+        node.put("metricsPort", metricsPort);
+        node.put("metricsHost", metricsHost);
+        node.put("triggerPort", triggerPort);
+        node.put("triggerHost", triggerHost);
+        if(triggerToken != null)
+            node.put("triggerToken", triggerToken);
+        node.put("triggerCoalesceMillis", triggerCoalesceMillis);
         try {
             Files.write(configPath, NodeUtil.mapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(node));
             logger.info("Config saved");
@@ -55,16 +221,41 @@ public class Config {
         }
     }
 
+    /**
+     * Address families that have at least one configured record.
+     */
+    public List<IpFamily> getFamilies() {
+        return Arrays.stream(IpFamily.values())
+                .filter(family -> zones.stream()
+                        .flatMap(zone -> zone.getRecords().stream())
+                        .anyMatch(record -> family.getRecordType().equals(record.getType())))
+                .collect(Collectors.toList());
+    }
+
+    public List<IpProviderConfig> getIpProviders(IpFamily family) {
+        return family == IpFamily.V4 ? ipProviders : ipv6Providers;
+    }
+
     private Completable setup() {
         Scanner scanner = new Scanner(System.in);
 
         System.out.print("API token (Permissions: Zone.Zone, Zone.DNS | Resources: All zones): ");
         apiToken = scanner.nextLine().trim();
         System.out.print("Domain (e.g. example.com): ");
-        domain = scanner.nextLine().trim();
+        String domain = scanner.nextLine().trim();
         System.out.print("DNS record name (e.g. home): ");
-        recordName = scanner.nextLine().trim();
+        String recordName = scanner.nextLine().trim();
+        zones = new ArrayList<>(Collections.singletonList(newZone(domain, recordName)));
 
         return save();
     }
+
+    private ZoneConfig newZone(String domain, String recordName) {
+        RecordConfig record = new RecordConfig();
+        record.setName(recordName);
+        ZoneConfig zone = new ZoneConfig();
+        zone.setName(domain);
+        zone.getRecords().add(record);
+        return zone;
+    }
 }
@@ -0,0 +1,75 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.google.inject.Inject;
+import com.jordanluyke.cloudflareddns.model.IpFamily;
+import com.jordanluyke.cloudflareddns.util.IpUtil;
+import io.reactivex.rxjava3.core.Observable;
+import io.netty.util.NetUtil;
+import io.reactivex.rxjava3.schedulers.Schedulers;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the local network interfaces for a public IPv4 or IPv6 address. Useful when the device holds its public address
+ * directly, since a change is seen within one check interval and no outbound request is needed. The JDK offers no
+ * address change notifications, so the interfaces are polled every {@link Config#getInterfaceCheckIntervalMillis()}.
+ * With {@link Config#getInterfaceName()} set only that interface is read, which is much cheaper than listing them all.
+ * <p>
+ * An interface can hold several public addresses of a family, such as the rotating privacy addresses IPv6 hosts add
+ * next to their stable one, and the JDK does not say which are temporary. The choice is made deterministic instead:
+ * IPv6 addresses derived from the hardware address (EUI-64) are preferred as they never rotate, then the lowest
+ * address wins.
+ */
+public class InterfaceWatcher {
+    private static final Logger logger = LogManager.getLogger(InterfaceWatcher.class);
+
+    @Inject private Config config;
+
+    /**
+     * Emits the current public address of the family, or empty when no interface holds one, then again each time that
+     * changes.
+     */
+    public Observable<Optional<String>> watch(IpFamily family) {
+        return Observable.interval(0, config.getInterfaceCheckIntervalMillis(), TimeUnit.MILLISECONDS, Schedulers.io())
+                .map(tick -> findAddress(family))
+                .distinctUntilChanged()
+                .doOnNext(ip -> logger.info("Interface {} address: {}", family.getLabel(), ip.orElse("none")));
+    }
+
+    private Optional<String> findAddress(IpFamily family) {
+        List<InetAddress> addresses = new ArrayList<>();
+        try {
+            List<NetworkInterface> networkInterfaces = config.getInterfaceName() != null
+                    ? Optional.ofNullable(NetworkInterface.getByName(config.getInterfaceName())).map(Collections::singletonList).orElse(Collections.emptyList())
+                    : Collections.list(NetworkInterface.getNetworkInterfaces());
+            for(NetworkInterface networkInterface : networkInterfaces) {
+                if(!networkInterface.isUp() || networkInterface.isLoopback() || networkInterface.isVirtual())
+                    continue;
+                for(InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    InetAddress address = interfaceAddress.getAddress();
+                    if(family.matches(address) && IpUtil.isPublic(address))
+                        addresses.add(address);
+                }
+            }
+        } catch(SocketException e) {
+            logger.error("Unable to read interfaces: {}", e.getMessage());
+        }
+        return addresses.stream()
+                .min(Comparator.comparing((InetAddress address) -> !isEui64(address))
+                        .thenComparing(InetAddress::getAddress, Arrays::compareUnsigned))
+                .map(NetUtil::toAddressString);
+    }
+
+    /**
+     * Whether the address is an IPv6 address whose interface ID was derived from a MAC address, marked by ff:fe in its
+     * middle.
+     */
+    private static boolean isEui64(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        return bytes.length == 16 && bytes[11] == (byte) 0xff && bytes[12] == (byte) 0xfe;
+    }
+}
@@ -0,0 +1,139 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.google.inject.Inject;
+import com.jordanluyke.cloudflareddns.model.IpFamily;
+import com.jordanluyke.cloudflareddns.model.IpProviderConfig;
+import com.jordanluyke.cloudflareddns.util.Histogram;
+import com.jordanluyke.cloudflareddns.util.IpUtil;
+import com.jordanluyke.cloudflareddns.util.MetricsRegistry;
+import com.jordanluyke.cloudflareddns.util.NettyHttpClient;
+import com.jordanluyke.cloudflareddns.util.NodeUtil;
+import io.netty.handler.codec.http.HttpMethod;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the public IP of each address family by asking several HTTP providers. Providers are asked fastest first, and each further provider
+ * is asked as soon as the one before it has failed or answered, or has had {@link Config#getIpHedgeDelayMillis()} to
+ * do so. The first answer given by {@link Config#getIpQuorum()} providers wins and the rest are cancelled.
+ */
+@Singleton
+public class IpDiscovery {
+    private static final Logger logger = LogManager.getLogger(IpDiscovery.class);
+    private static final double latencyWeight = 0.2;
+    private static final long failurePenaltyMillis = TimeUnit.SECONDS.toMillis(10);
+
+    @Inject private Config config;
+    @Inject private NettyHttpClient httpClient;
+    @Inject private MetricsRegistry metrics;
+
+    private final Map<String, ProviderStats> stats = new ConcurrentHashMap<>();
+
+    public Single<String> getIp(IpFamily family) {
+        return Single.defer(() -> {
+            List<IpProviderConfig> providers = config.getIpProviders(family)
+                    .stream()
+                    .sorted(Comparator.comparingLong(provider -> getStats(provider).getLatencyMillis()))
+                    .collect(Collectors.toList());
+            Map<String, Integer> answers = new HashMap<>();
+            AtomicReference<Throwable> lastError = new AtomicReference<>();
+            return hedge(family, providers, 0, lastError)
+                    .filter(ip -> answers.merge(ip, 1, Integer::sum) >= config.getIpQuorum())
+                    .firstOrError()
+                    .onErrorResumeNext(err -> Single.error(err instanceof NoSuchElementException
+                            ? new RuntimeException("No " + family.getLabel() + " provider answered", lastError.get())
+                            : err));
+        });
+    }
+
+    /**
+     * Asks the provider at the index, then the next one once this one has finished or the hedge delay has passed,
+     * whichever comes first.
+     */
+    private Observable<String> hedge(IpFamily family, List<IpProviderConfig> providers, int index, AtomicReference<Throwable> lastError) {
+        if(index >= providers.size())
+            return Observable.empty();
+        IpProviderConfig provider = providers.get(index);
+        return query(family, provider)
+                .toObservable()
+                .onErrorResumeNext(err -> {
+                    lastError.set(err);
+                    logger.debug("IP provider failed: {} {}", provider.getUrl(), err.getMessage());
+                    return Observable.empty();
+                })
+                .publish(answer -> Observable.merge(answer, Completable.ambArray(Completable.timer(config.getIpHedgeDelayMillis(), TimeUnit.MILLISECONDS), answer.ignoreElements())
+                        .andThen(Observable.defer(() -> hedge(family, providers, index + 1, lastError)))));
+    }
+
+    private Single<String> query(IpFamily family, IpProviderConfig provider) {
+        ProviderStats providerStats = getStats(provider);
+        return Single.defer(() -> {
+            long start = System.nanoTime();
+            // A cached answer could hide an IP change, so responses are only ever revalidated
+            return httpClient.request(provider.getUrl(), HttpMethod.GET, null, Collections.emptyMap(), httpClient.getDefaultOptions().withCacheMaxAgeMillis(0))
+                    .map(res -> {
+                        try {
+                            if(res.getStatusCode() != 200)
+                                throw new RuntimeException("Bad response");
+                            String ip = provider.getField() != null
+                                    ? NodeUtil.getString(provider.getField(), res.getJsonBody()).orElseThrow(() -> new RuntimeException("Unable to get field: " + provider.getField()))
+                                    : res.getStringBody().trim();
+                            if(!family.isValid(ip))
+                                throw new RuntimeException("Invalid " + family.getLabel() + ": " + ip);
+                            return IpUtil.normalize(ip);
+                        } finally {
+                            res.release();
+                        }
+                    })
+                    .doOnSuccess(ip -> {
+                        providerStats.getLatency().recordSince(start);
+                        providerStats.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    })
+                    .doOnError(err -> providerStats.record(failurePenaltyMillis))
+                    // Cancelled because another provider answered first, so it took at least this long
+                    .doOnDispose(() -> providerStats.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        });
+    }
+
+    private ProviderStats getStats(IpProviderConfig provider) {
+        return stats.computeIfAbsent(provider.getUrl(), url -> new ProviderStats(metrics.histogram("ddns_ip_provider_seconds", "Time taken by each IP provider to answer", "provider", url)));
+    }
+
+    /**
+     * Exponentially weighted moving average of a provider's latency. Failures count as a slow answer.
+     */
+    private static class ProviderStats {
+        @Getter private final Histogram latency;
+        private final AtomicLong latencyMillis = new AtomicLong(0);
+        @Getter private volatile boolean measured = false;
+
+        public ProviderStats(Histogram latency) {
+            this.latency = latency;
+        }
+
+        public long getLatencyMillis() {
+            return latencyMillis.get();
+        }
+
+        public void record(long millis) {
+            if(!measured) {
+                measured = true;
+                latencyMillis.set(millis);
+                return;
+            }
+            latencyMillis.updateAndGet(current -> Math.round(current + latencyWeight * (millis - current)));
+        }
+    }
+}
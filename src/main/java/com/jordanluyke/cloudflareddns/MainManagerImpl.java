@@ -1,120 +1,139 @@
 package com.jordanluyke.cloudflareddns;
 
 import com.google.inject.Inject;
+import com.jordanluyke.cloudflareddns.model.DeviceIp;
 import com.jordanluyke.cloudflareddns.model.DnsRecord;
-import com.jordanluyke.cloudflareddns.model.Zone;
+import com.jordanluyke.cloudflareddns.model.IpFamily;
+import com.jordanluyke.cloudflareddns.util.IpUtil;
+import com.jordanluyke.cloudflareddns.util.MetricsRegistry;
 import com.jordanluyke.cloudflareddns.util.NettyHttpClient;
-import com.jordanluyke.cloudflareddns.util.NodeUtil;
+import com.jordanluyke.cloudflareddns.util.NettyHttpServer;
+import com.jordanluyke.cloudflareddns.util.RequestOptions;
 import io.reactivex.rxjava3.core.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.util.NoSuchElementException;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 
 public class MainManagerImpl implements MainManager {
     private static final Logger logger = LogManager.getLogger(MainManager.class);
-    private static final long updateInterval = 5;
-    private static final TimeUnit updateUnit = TimeUnit.MINUTES;
-    private static final long retryInterval = 10;
-    private static final TimeUnit retryUnit = TimeUnit.SECONDS;
 
     @Inject private Config config;
-    @Inject private CloudflareApi cloudflareApi;
+    @Inject private Reconciler reconciler;
+    @Inject private RecordCache recordCache;
+    @Inject private InterfaceWatcher interfaceWatcher;
     @Inject private NettyHttpClient httpClient;
+    @Inject private IpDiscovery ipDiscovery;
+    @Inject private UpdateScheduler updateScheduler;
+    @Inject private UpdateMetrics metrics;
+    @Inject private MetricsRegistry metricsRegistry;
+    @Inject private TriggerServer triggerServer;
 
-    private boolean connected = false;
-    private Optional<String> deviceIp = Optional.empty();
-    private Optional<String> dnsRecordIp = Optional.empty();
+    private final Set<IpFamily> connected = ConcurrentHashMap.newKeySet();
+    private final Map<IpFamily, String> deviceIps = new ConcurrentHashMap<>();
+    private final Map<IpFamily, String> interfaceIps = new ConcurrentHashMap<>();
 
     @Override
     public Completable start() {
         return config.load()
+                .andThen(Completable.defer(recordCache::load))
+                .andThen(Completable.defer(this::startMetricsServer))
+                .andThen(Completable.defer(triggerServer::start))
                 .doOnComplete(() -> {
-                    Observable.interval(0, updateInterval, updateUnit)
-                            .flatMapMaybe(Void -> update()
-                                    .onErrorResumeWith(Maybe.empty()))
+                    httpClient.setMaxConnectionsPerHost(config.getMaxConnectionsPerHost());
+                    httpClient.setIdleTimeout(config.getConnectionIdleTimeoutSeconds());
+                    httpClient.setHttp2(config.isHttp2());
+                    httpClient.setResponseCacheMaxBytes(config.getResponseCacheMaxBytes());
+                    httpClient.setNameservers(config.getNameservers()
+                            .stream()
+                            .map(nameserver -> IpUtil.parseSocketAddress(nameserver, 53))
+                            .collect(Collectors.toList()));
+                    httpClient.setDefaultOptions(new RequestOptions(config.getConnectTimeoutMillis(), config.getReadTimeoutMillis(), config.getRequestTimeoutMillis()));
+                    // One lookup per family per poll, shared by every record of that family. Each family is scheduled
+                    // on its own so a family that cannot be looked up is backed off without delaying the others
+                    Observable<DeviceIp> polled = Observable.fromIterable(config.getFamilies())
+                            .flatMap(family -> updateScheduler.schedule(lookupIp(family)
+                                    .map(ip -> new DeviceIp(family, ip))
+                                    .toObservable()));
+                    Observable<DeviceIp> watched = !config.isWatchInterfaces() ? Observable.empty() : Observable.fromIterable(config.getFamilies())
+                            .flatMap(family -> interfaceWatcher.watch(family)
+                                    .doOnNext(ip -> {
+                                        if(ip.isPresent())
+                                            interfaceIps.put(family, ip.get());
+                                        else
+                                            interfaceIps.remove(family);
+                                    })
+                                    .filter(Optional::isPresent)
+                                    .map(ip -> new DeviceIp(family, ip.get())));
+                    // Each family is updated independently, so A and AAAA records are reconciled in parallel
+                    Observable.merge(polled, watched, triggerServer.updates())
+                            .groupBy(DeviceIp::getFamily)
+                            .flatMap(family -> family.concatMap(deviceIp -> update(deviceIp)
+                                    .onErrorResumeWith(Observable.empty())))
                             .blockingSubscribe();
                 });
     }
 
-    private Maybe<DnsRecord> update() {
-        return getIp()
+    private Observable<DnsRecord> update(DeviceIp deviceIp) {
+        return Observable.defer(() -> {
+            IpFamily family = deviceIp.getFamily();
+            String previous = deviceIps.put(family, deviceIp.getIp());
+            if(!deviceIp.getIp().equals(previous)) {
+                logger.info("Acquired {}: {}", family.getLabel(), deviceIp.getIp());
+                if(previous != null) {
+                    metrics.getIpChanges().increment();
+                    updateScheduler.onChange();
+                }
+            }
+            return reconciler.reconcile(family, deviceIp.getIp());
+        });
+    }
+
+    /**
+     * A public address held by an interface takes precedence over the providers, which may see a different egress
+     * address. Otherwise the two would take turns rewriting the records. The providers are asked again once the
+     * interface loses the address.
+     */
+    private Single<String> lookupIp(IpFamily family) {
+        return Single.defer(() -> Optional.ofNullable(interfaceIps.get(family))
+                .map(Single::just)
+                .orElseGet(() -> pollIp(family)));
+    }
+
+    private Single<String> pollIp(IpFamily family) {
+        return metrics.getIpLookup().time(ipDiscovery.getIp(family))
                 .doOnSuccess(ip -> {
-                    if(!connected) {
-                        logger.info("Connected");
-                        connected = true;
+                    if(connected.add(family)) {
+                        logger.info("Connected ({})", family.getLabel());
+                        if(deviceIps.containsKey(family))
+                            updateScheduler.onChange();
                     }
-                    if(!deviceIp.isPresent() || !deviceIp.get().equals(ip))
-                        logger.info("Acquired IP: {}", ip);
-                    deviceIp = Optional.of(ip);
                 })
                 .doOnError(err -> {
-                    if(connected) {
+                    metrics.getIpLookupErrors().increment();
+                    if(connected.remove(family)) {
                         if(err.getCause() instanceof UnknownHostException || err.getCause() instanceof SocketException)
-                            logger.error("Disconnected");
-                        connected = false;
-                    }
-                })
-                .retryWhen(errors -> errors
-                        .zipWith(Flowable.defer(() -> {
-                            long updateIntervalSeconds = updateUnit.toSeconds(updateInterval);
-                            long retryIntervalSeconds = retryUnit.toSeconds(retryInterval);
-                            int count = (int) (updateIntervalSeconds / retryIntervalSeconds);
-                            if(updateIntervalSeconds % retryIntervalSeconds == 0 && count > 1)
-                                count--;
-                            return Flowable.range(1, count);
-                        }), (e, i) -> i)
-                        .flatMap(i -> Flowable.timer(retryInterval, retryUnit)))
-                .flatMapMaybe(ip -> {
-                    if(deviceIp.equals(dnsRecordIp))
-                        return Maybe.empty();
-                    return getZoneOfDomain()
-                            .toMaybe();
-                })
-                .flatMapSingle(zone -> getDnsRecord(zone))
-                .flatMap(record -> {
-                    if(deviceIp.get().equals(record.getContent())) {
-                        logger.info("DNS IP up to date");
-                        dnsRecordIp = deviceIp;
-                        return Maybe.empty();
+                            logger.error("Disconnected ({})", family.getLabel());
                     }
-                    return cloudflareApi.updateDnsRecord(record.getZoneId(), record.getId(), record.getType(), record.getName(), deviceIp.get(), true)
-                            .doOnSuccess(r -> {
-                                logger.info("Updated DNS record: {} to {}", r.getName(), r.getContent());
-                                dnsRecordIp = deviceIp;
-                            })
-                            .toMaybe();
-                });
-    }
-
-    private Single<Zone> getZoneOfDomain() {
-        return cloudflareApi.getZones()
-                .filter(zone -> zone.getName().equals(config.getDomain()))
-                .firstOrError()
-                .onErrorResumeNext(err -> {
-                    if(err instanceof NoSuchElementException)
-                        logger.error("No domain found with name: {}", config.getDomain());
-                    return Single.error(err);
-                });
-    }
-
-    private Single<DnsRecord> getDnsRecord(Zone zone) {
-        return cloudflareApi.getDnsRecords(zone.getId())
-                .filter(record -> record.getName().equals(config.getRecordName()) || record.getName().equals(config.getRecordName() + "." + config.getDomain()))
-                .firstOrError()
-                .onErrorResumeNext(err -> {
-                    if(err instanceof NoSuchElementException)
-                        logger.error("No DNS record found with name: {}", config.getRecordName());
-                    return Single.error(err);
                 });
     }
 
-    private Single<String> getIp() {
-        return httpClient.get("https://api.ipify.org/?format=json")
-                .map(res -> NodeUtil.getString("ip", res.getJsonBody()).orElseThrow(() -> new RuntimeException("Unable to get field: ip")));
+    /**
+     * Serves the metrics in the Prometheus text format at /metrics when a metrics port is configured.
+     */
+    private Completable startMetricsServer() {
+        if(config.getMetricsPort() <= 0)
+            return Completable.complete();
+        return new NettyHttpServer(config.getMetricsHost(), config.getMetricsPort(), req -> {
+            if(!req.getPath().equals("/metrics"))
+                return Single.just(NettyHttpServer.ServerResponse.text(404, "Not found"));
+            return Single.just(new NettyHttpServer.ServerResponse(200, "text/plain; version=0.0.4; charset=utf-8", metricsRegistry.scrape()));
+        }).start();
     }
 }
@@ -0,0 +1,77 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.google.inject.Inject;
+import io.reactivex.rxjava3.core.Completable;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by every Cloudflare API call. The bucket holds up to {@link Config#getRateLimitBurst()} tokens
+ * and refills so that no {@link Config#getRateLimitWindowSeconds()} window, however it is placed, sees more than
+ * {@link Config#getRateLimitRequests()} requests. Callers that find the bucket empty reserve a future token and are
+ * released in the order they arrived.
+ */
+@Singleton
+public class RateLimiter {
+    private static final Logger logger = LogManager.getLogger(RateLimiter.class);
+
+    @Inject private Config config;
+
+    private boolean started = false;
+    private double tokens;
+    private long refilledAt;
+    private long pausedUntil = 0;
+
+    /**
+     * Completes once the caller may send a request. Disposing while waiting gives the reserved token back.
+     */
+    public Completable acquire() {
+        return Completable.defer(() -> {
+            long waitNanos = reserve();
+            if(waitNanos <= 0)
+                return Completable.complete();
+            logger.debug("Rate limited for {}ms", TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            return Completable.timer(waitNanos, TimeUnit.NANOSECONDS)
+                    .doOnDispose(this::giveBack);
+        });
+    }
+
+    /**
+     * Holds every caller back for a while, e.g. when the API asks for it with Retry-After.
+     */
+    public synchronized void pause(long duration, TimeUnit unit) {
+        pausedUntil = Math.max(pausedUntil, System.nanoTime() + unit.toNanos(duration));
+    }
+
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        refill(now);
+        tokens--;
+        long waitNanos = tokens >= 0 ? 0 : (long) Math.ceil(-tokens * getNanosPerToken());
+        return Math.max(waitNanos, pausedUntil - now);
+    }
+
+    private synchronized void giveBack() {
+        tokens = Math.min(tokens + 1, config.getRateLimitBurst());
+    }
+
+    private void refill(long now) {
+        if(!started) {
+            started = true;
+            tokens = config.getRateLimitBurst();
+        } else
+            tokens = Math.min(config.getRateLimitBurst(), tokens + (now - refilledAt) / getNanosPerToken());
+        refilledAt = now;
+    }
+
+    /**
+     * The burst is taken out of the window's budget so a full bucket followed by a window of refills stays within it.
+     */
+    private double getNanosPerToken() {
+        int refills = Math.max(1, config.getRateLimitRequests() - config.getRateLimitBurst());
+        return (double) TimeUnit.SECONDS.toNanos(config.getRateLimitWindowSeconds()) / refills;
+    }
+}
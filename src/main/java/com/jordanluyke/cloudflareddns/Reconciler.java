@@ -0,0 +1,225 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.google.inject.Inject;
+import com.jordanluyke.cloudflareddns.model.DnsRecord;
+import com.jordanluyke.cloudflareddns.model.IpFamily;
+import com.jordanluyke.cloudflareddns.model.RecordConfig;
+import com.jordanluyke.cloudflareddns.model.Zone;
+import com.jordanluyke.cloudflareddns.model.ZoneConfig;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the configured DNS records of every zone pointed at the device IP.
+ */
+@Singleton
+public class Reconciler {
+    private static final Logger logger = LogManager.getLogger(Reconciler.class);
+
+    @Inject private Config config;
+    @Inject private CloudflareApi cloudflareApi;
+    @Inject private RecordCache recordCache;
+    @Inject private UpdateMetrics metrics;
+
+    /**
+     * Updates every configured record of the family's type that does not already hold the IP. Records cached as holding the IP are
+     * skipped and each zone is looked up at most once per call. Up to {@link Config#getParallelism()} zones are
+     * handled at a time, each resolving up to that many records at a time. When more than one record in a zone needs
+     * changing they are sent through the batch endpoint. Failures are logged per record and do not stop the others.
+     * The cache is saved when done.
+     */
+    public Observable<DnsRecord> reconcile(IpFamily family, String ip) {
+        return metrics.getReconcile().time(Observable.fromIterable(config.getZones())
+                .filter(zoneConfig -> zoneConfig.getRecords().stream().anyMatch(recordConfig -> family.getRecordType().equals(recordConfig.getType())))
+                .flatMap(zoneConfig -> reconcileZone(zoneConfig, family, ip), config.getParallelism())
+                .concatWith(Completable.defer(recordCache::save)));
+    }
+
+    private Observable<DnsRecord> reconcileZone(ZoneConfig zoneConfig, IpFamily family, String ip) {
+        Single<String> zoneId = getZoneId(zoneConfig.getName()).cache();
+        return Observable.fromIterable(zoneConfig.getRecords())
+                .filter(recordConfig -> family.getRecordType().equals(recordConfig.getType()))
+                .filter(recordConfig -> !recordCache.getRecord(getKey(zoneConfig, recordConfig))
+                        .map(cached -> ip.equals(cached.getContent()))
+                        .orElse(false))
+                .flatMap(recordConfig -> resolveRecord(zoneId, zoneConfig, recordConfig, ip).toObservable(), config.getParallelism())
+                .toList()
+                .flatMapObservable(pending -> {
+                    if(pending.size() > 1)
+                        return batchUpdate(zoneId, zoneConfig, pending, ip);
+                    return Observable.fromIterable(pending)
+                            .flatMapMaybe(update -> updateDnsRecord(zoneId, zoneConfig, update, ip));
+                });
+    }
+
+    /**
+     * Finds the record to update, from the cache when possible. Completes empty when the record already holds the IP
+     * or cannot be found.
+     */
+    private Maybe<PendingUpdate> resolveRecord(Single<String> zoneId, ZoneConfig zoneConfig, RecordConfig recordConfig, String ip) {
+        String name = recordConfig.getFqdn(zoneConfig.getName());
+        return recordCache.getRecord(getKey(zoneConfig, recordConfig))
+                .map(cached -> Maybe.just(new PendingUpdate(recordConfig, cached.getZoneId(), cached.getId())))
+                .orElseGet(() -> lookupDnsRecord(zoneId, zoneConfig, recordConfig)
+                        .flatMapMaybe(update -> {
+                            if(ip.equals(update.getContent())) {
+                                logger.info("DNS IP up to date: {}", name);
+                                return Maybe.empty();
+                            }
+                            return Maybe.just(update);
+                        })
+                        .onErrorResumeNext(err -> {
+                            metrics.getRecordErrors().increment();
+                            if(!(err instanceof NoSuchElementException))
+                                logger.error("Unable to look up {}: {}", name, err.getMessage());
+                            return Maybe.empty();
+                        }));
+    }
+
+    private Single<PendingUpdate> lookupDnsRecord(Single<String> zoneId, ZoneConfig zoneConfig, RecordConfig recordConfig) {
+        String name = recordConfig.getFqdn(zoneConfig.getName());
+        return zoneId.flatMap(id -> getDnsRecord(id, name, recordConfig.getType())
+                        .doOnSuccess(record -> recordCache.putRecord(getKey(zoneConfig, recordConfig), id, record))
+                        .map(record -> new PendingUpdate(recordConfig, id, record.getId(), record.getContent())))
+                .onErrorResumeNext(err -> {
+                    if(isNotFound(err))
+                        recordCache.invalidateZone(zoneConfig.getName());
+                    return Single.error(err);
+                });
+    }
+
+    /**
+     * Updates one record. A 404 means the cached IDs are stale, so the record is looked up again and retried once.
+     */
+    private Maybe<DnsRecord> updateDnsRecord(Single<String> zoneId, ZoneConfig zoneConfig, PendingUpdate update, String ip) {
+        String key = getKey(zoneConfig, update.getRecordConfig());
+        String name = update.getRecordConfig().getFqdn(zoneConfig.getName());
+        return putDnsRecord(zoneConfig, update, ip)
+                .onErrorResumeNext(err -> {
+                    if(!isNotFound(err))
+                        return Maybe.error(err);
+                    logger.info("Cached DNS record not found: {}", name);
+                    recordCache.invalidateRecord(key);
+                    return lookupDnsRecord(zoneId, zoneConfig, update.getRecordConfig())
+                            .flatMapMaybe(fresh -> putDnsRecord(zoneConfig, fresh, ip));
+                })
+                .onErrorResumeNext(err -> {
+                    metrics.getRecordErrors().increment();
+                    if(!(err instanceof NoSuchElementException))
+                        logger.error("Unable to update {}: {}", name, err.getMessage());
+                    return Maybe.empty();
+                });
+    }
+
+    private Maybe<DnsRecord> putDnsRecord(ZoneConfig zoneConfig, PendingUpdate update, String ip) {
+        RecordConfig recordConfig = update.getRecordConfig();
+        return metrics.getUpdate().time(cloudflareApi.updateDnsRecord(update.getZoneId(), update.getRecordId(), recordConfig.getType(), recordConfig.getFqdn(zoneConfig.getName()), ip, recordConfig.isProxied()))
+                .doOnSuccess(record -> onUpdated(zoneConfig, update, record))
+                .toMaybe();
+    }
+
+    /**
+     * Sends all pending updates of a zone through the batch endpoint. Records in a chunk the API rejected fall back to
+     * individual updates, which look the record up again if its cached ID is stale. A chunk that was rate limited or
+     * failed on the server side has already been retried, so its records are left for the next cycle rather than sent
+     * again one by one.
+     */
+    private Observable<DnsRecord> batchUpdate(Single<String> zoneId, ZoneConfig zoneConfig, List<PendingUpdate> pending, String ip) {
+        Map<String, PendingUpdate> updates = pending.stream()
+                .collect(Collectors.toMap(PendingUpdate::getRecordId, update -> update, (a, b) -> a));
+        List<DnsRecord> records = updates.values()
+                .stream()
+                .map(update -> {
+                    DnsRecord record = new DnsRecord();
+                    record.setId(update.getRecordId());
+                    record.setType(update.getRecordConfig().getType());
+                    record.setName(update.getRecordConfig().getFqdn(zoneConfig.getName()));
+                    record.setContent(ip);
+                    record.setProxied(update.getRecordConfig().isProxied());
+                    return record;
+                })
+                .collect(Collectors.toList());
+        return metrics.getBatchUpdate().time(cloudflareApi.batchUpdate(pending.get(0).getZoneId(), records))
+                .flatMapMaybe(result -> {
+                    PendingUpdate update = updates.get(result.getRecord().getId());
+                    if(result.isSuccess()) {
+                        onUpdated(zoneConfig, update, result.getUpdated());
+                        return Maybe.just(result.getUpdated());
+                    }
+                    if(result.getError() instanceof CloudflareApiException && !((CloudflareApiException) result.getError()).isRetryable())
+                        return updateDnsRecord(zoneId, zoneConfig, update, ip);
+                    metrics.getRecordErrors().increment();
+                    logger.error("Unable to update {}: {}", result.getRecord().getName(), result.getError().getMessage());
+                    return Maybe.empty();
+                });
+    }
+
+    private void onUpdated(ZoneConfig zoneConfig, PendingUpdate update, DnsRecord record) {
+        logger.info("Updated DNS record: {} to {}", record.getName(), record.getContent());
+        metrics.getRecordsUpdated().increment();
+        recordCache.putRecord(getKey(zoneConfig, update.getRecordConfig()), update.getZoneId(), record);
+    }
+
+    private Single<String> getZoneId(String name) {
+        return Single.defer(() -> recordCache.getZoneId(name)
+                .map(Single::just)
+                .orElseGet(() -> getZone(name)
+                        .map(Zone::getId)
+                        .doOnSuccess(id -> recordCache.putZone(name, id))));
+    }
+
+    private Single<Zone> getZone(String name) {
+        return metrics.getZoneLookup().time(cloudflareApi.findZoneByName(name)
+                .filter(zone -> zone.getName().equals(name))
+                .firstOrError())
+                .onErrorResumeNext(err -> {
+                    if(err instanceof NoSuchElementException)
+                        logger.error("No domain found with name: {}", name);
+                    return Single.error(err);
+                });
+    }
+
+    private Single<DnsRecord> getDnsRecord(String zoneId, String name, String type) {
+        return metrics.getRecordLookup().time(cloudflareApi.findDnsRecords(zoneId, name, type)
+                .filter(record -> record.getName().equals(name) && record.getType().equals(type))
+                .firstOrError())
+                .onErrorResumeNext(err -> {
+                    if(err instanceof NoSuchElementException)
+                        logger.error("No {} record found with name: {}", type, name);
+                    return Single.error(err);
+                });
+    }
+
+    private String getKey(ZoneConfig zoneConfig, RecordConfig recordConfig) {
+        return recordConfig.getType() + " " + recordConfig.getFqdn(zoneConfig.getName());
+    }
+
+    private boolean isNotFound(Throwable err) {
+        return err instanceof CloudflareApiException && ((CloudflareApiException) err).isNotFound();
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static class PendingUpdate {
+        private final RecordConfig recordConfig;
+        private final String zoneId;
+        private final String recordId;
+        private final String content;
+
+        public PendingUpdate(RecordConfig recordConfig, String zoneId, String recordId) {
+            this(recordConfig, zoneId, recordId, null);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.inject.Inject;
+import com.jordanluyke.cloudflareddns.model.CachedRecord;
+import com.jordanluyke.cloudflareddns.model.CachedZone;
+import com.jordanluyke.cloudflareddns.model.DnsRecord;
+import com.jordanluyke.cloudflareddns.util.NodeUtil;
+import io.reactivex.rxjava3.core.Completable;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Resolved zone IDs, record IDs and last known record content, persisted next to the config so a restart does not
+ * need to list anything again. Entries expire after {@link Config#getCacheTtlMinutes()}.
+ */
+@Singleton
+public class RecordCache {
+    private static final Logger logger = LogManager.getLogger(RecordCache.class);
+    public static final Path statePath = Config.configPath.resolveSibling("cloudflare-ddns-state.json");
+
+    @Inject private Config config;
+
+    private final Map<String, CachedZone> zones = new ConcurrentHashMap<>();
+    private final Map<String, CachedRecord> records = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+
+    public Completable load() {
+        if(!Files.exists(statePath))
+            return Completable.complete();
+        try {
+            JsonNode body = NodeUtil.getJsonNode(Files.readAllBytes(statePath));
+            NodeUtil.getList("zones", body, CachedZone[].class)
+                    .ifPresent(list -> list.forEach(zone -> zones.put(zone.getName(), zone)));
+            NodeUtil.getList("records", body, CachedRecord[].class)
+                    .ifPresent(list -> list.forEach(record -> records.put(record.getKey(), record)));
+            logger.info("State loaded: {} zones, {} records", zones.size(), records.size());
+        } catch(IOException | RuntimeException e) {
+            logger.error("Unable to load state: {}", e.getMessage());
+        }
+        return Completable.complete();
+    }
+
+    /**
+     * Writes the cache to disk if it changed since the last save.
+     */
+    public synchronized Completable save() {
+        if(!dirty.compareAndSet(true, false))
+            return Completable.complete();
+        ObjectNode node = NodeUtil.mapper.createObjectNode();
+        node.set("zones", NodeUtil.parseObjectIntoNode(new ArrayList<>(zones.values())));
+        node.set("records", NodeUtil.parseObjectIntoNode(new ArrayList<>(records.values())));
+        try {
+            Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+            Files.write(tmp, NodeUtil.writeValueAsBytes(node));
+            Files.move(tmp, statePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            dirty.set(true);
+            logger.error("Unable to save state: {}", e.getMessage());
+        }
+        return Completable.complete();
+    }
+
+    public Optional<String> getZoneId(String name) {
+        return Optional.ofNullable(zones.get(name))
+                .filter(zone -> zone.getExpiresAt() > System.currentTimeMillis())
+                .map(CachedZone::getId);
+    }
+
+    public void putZone(String name, String id) {
+        zones.put(name, new CachedZone(name, id, getExpiresAt()));
+        dirty.set(true);
+    }
+
+    public void invalidateZone(String name) {
+        if(zones.remove(name) != null)
+            dirty.set(true);
+    }
+
+    public Optional<CachedRecord> getRecord(String key) {
+        return Optional.ofNullable(records.get(key))
+                .filter(record -> record.getExpiresAt() > System.currentTimeMillis());
+    }
+
+    public void putRecord(String key, String zoneId, DnsRecord record) {
+        records.put(key, new CachedRecord(key, zoneId, record.getId(), record.getType(), record.getName(), record.getContent(), getExpiresAt()));
+        dirty.set(true);
+    }
+
+    public void invalidateRecord(String key) {
+        if(records.remove(key) != null)
+            dirty.set(true);
+    }
+
+    /**
+     * Drops every zone and record, as if nothing had been resolved yet.
+     */
+    public void clear() {
+        zones.clear();
+        records.clear();
+        dirty.set(true);
+    }
+
+    private long getExpiresAt() {
+        return System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(config.getCacheTtlMinutes());
+    }
+}
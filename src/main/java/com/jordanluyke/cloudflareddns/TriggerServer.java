@@ -0,0 +1,128 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.google.inject.Inject;
+import com.jordanluyke.cloudflareddns.model.DeviceIp;
+import com.jordanluyke.cloudflareddns.model.IpFamily;
+import com.jordanluyke.cloudflareddns.util.IpUtil;
+import com.jordanluyke.cloudflareddns.util.NettyHttpServer;
+import com.jordanluyke.cloudflareddns.util.NettyHttpServer.ServerRequest;
+import com.jordanluyke.cloudflareddns.util.NettyHttpServer.ServerResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+import io.reactivex.rxjava3.subjects.Subject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP endpoint that lets a router push its new address instead of waiting for the next poll. Modelled on the dyndns2
+ * protocol, so routers with a custom dyndns2 provider setting can call it directly:
+ * <ul>
+ *     <li>{@code /update?ip=} or {@code /nic/update?myip=} reconciles the given IPv4 and/or IPv6 address (comma
+ *     separated). Without one the caller's address is used when it is public, otherwise a poll is run.</li>
+ *     <li>{@code /trigger} runs a poll now.</li>
+ * </ul>
+ * Requests must carry {@link Config#getTriggerToken()} as a bearer token or as the basic auth password. Pushed
+ * addresses are coalesced per family so at most one is reconciled per {@link Config#getTriggerCoalesceMillis()}.
+ */
+@Singleton
+public class TriggerServer {
+    private static final Logger logger = LogManager.getLogger(TriggerServer.class);
+
+    @Inject private Config config;
+    @Inject private UpdateScheduler updateScheduler;
+
+    private final Subject<DeviceIp> pushed = PublishSubject.<DeviceIp>create().toSerialized();
+
+    public Completable start() {
+        if(config.getTriggerPort() <= 0)
+            return Completable.complete();
+        return new NettyHttpServer(config.getTriggerHost(), config.getTriggerPort(), this::handle).start();
+    }
+
+    /**
+     * Pushed addresses, keeping only the latest of each family within a coalescing window.
+     */
+    public Observable<DeviceIp> updates() {
+        return pushed.groupBy(DeviceIp::getFamily)
+                .flatMap(family -> family.throttleLatest(config.getTriggerCoalesceMillis(), TimeUnit.MILLISECONDS, true));
+    }
+
+    private Single<ServerResponse> handle(ServerRequest req) {
+        String path = req.getPath();
+        if(!path.equals("/update") && !path.equals("/nic/update") && !path.equals("/trigger"))
+            return Single.just(ServerResponse.text(404, "Not found"));
+        if(!isAuthorized(req)) {
+            logger.warn("Unauthorized trigger from {}", req.getRemoteAddress().getAddress().getHostAddress());
+            return Single.just(ServerResponse.text(401, "badauth")
+                    .header(HttpHeaderNames.WWW_AUTHENTICATE.toString(), "Basic realm=\"cloudflare-ddns\""));
+        }
+        if(path.equals("/trigger"))
+            return Single.just(pollNow());
+
+        String ips = Optional.ofNullable(req.getParam("ip"))
+                .orElse(req.getParam("myip"));
+        if(ips == null || ips.isEmpty()) {
+            InetAddress remote = req.getRemoteAddress().getAddress();
+            if(!IpUtil.isPublic(remote))
+                return Single.just(pollNow());
+            ips = remote.getHostAddress();
+        }
+        List<DeviceIp> deviceIps = new ArrayList<>();
+        for(String ip : ips.split(",")) {
+            String _ip = ip.trim();
+            Optional<IpFamily> family = Arrays.stream(IpFamily.values())
+                    .filter(f -> f.isValid(_ip))
+                    .findFirst();
+            if(!family.isPresent())
+                return Single.just(ServerResponse.text(400, "badip " + _ip));
+            if(config.getFamilies().contains(family.get()))
+                deviceIps.add(new DeviceIp(family.get(), IpUtil.normalize(_ip)));
+        }
+        if(deviceIps.isEmpty())
+            return Single.just(ServerResponse.text(200, "nohost"));
+        deviceIps.forEach(deviceIp -> {
+            logger.info("Pushed {}: {}", deviceIp.getFamily().getLabel(), deviceIp.getIp());
+            pushed.onNext(deviceIp);
+        });
+        return Single.just(ServerResponse.text(200, "good " + deviceIps.stream()
+                .map(DeviceIp::getIp)
+                .reduce((a, b) -> a + "," + b)
+                .orElse("")));
+    }
+
+    private ServerResponse pollNow() {
+        logger.info("Poll triggered");
+        updateScheduler.pollNow();
+        return ServerResponse.text(200, "good");
+    }
+
+    private boolean isAuthorized(ServerRequest req) {
+        String authorization = req.getHeaders().get(HttpHeaderNames.AUTHORIZATION);
+        if(authorization == null)
+            return false;
+        String token;
+        if(authorization.regionMatches(true, 0, "Bearer ", 0, 7))
+            token = authorization.substring(7).trim();
+        else if(authorization.regionMatches(true, 0, "Basic ", 0, 6)) {
+            try {
+                String credentials = new String(Base64.getDecoder().decode(authorization.substring(6).trim()), StandardCharsets.UTF_8);
+                token = credentials.substring(credentials.indexOf(':') + 1);
+            } catch(IllegalArgumentException e) {
+                return false;
+            }
+        } else
+            return false;
+        // Constant time so the token cannot be guessed from response times
+        return MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), config.getTriggerToken().getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,42 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.google.inject.Inject;
+import com.jordanluyke.cloudflareddns.util.Histogram;
+import com.jordanluyke.cloudflareddns.util.MetricsRegistry;
+import lombok.Getter;
+
+import javax.inject.Singleton;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency of each stage of an update cycle, in the {@code ddns_stage_seconds} histogram, and counts of its outcomes.
+ */
+@Getter
+@Singleton
+public class UpdateMetrics {
+    private final Histogram ipLookup;
+    private final Histogram zoneLookup;
+    private final Histogram recordLookup;
+    private final Histogram update;
+    private final Histogram batchUpdate;
+    private final Histogram reconcile;
+    private final LongAdder ipLookupErrors;
+    private final LongAdder ipChanges;
+    private final LongAdder recordsUpdated;
+    private final LongAdder recordErrors;
+
+    @Inject
+    public UpdateMetrics(MetricsRegistry metrics) {
+        String stageHelp = "Time spent in each stage of an update cycle";
+        ipLookup = metrics.histogram("ddns_stage_seconds", stageHelp, "stage", "ip_lookup");
+        zoneLookup = metrics.histogram("ddns_stage_seconds", stageHelp, "stage", "zone_lookup");
+        recordLookup = metrics.histogram("ddns_stage_seconds", stageHelp, "stage", "record_lookup");
+        update = metrics.histogram("ddns_stage_seconds", stageHelp, "stage", "update");
+        batchUpdate = metrics.histogram("ddns_stage_seconds", stageHelp, "stage", "batch_update");
+        reconcile = metrics.histogram("ddns_stage_seconds", stageHelp, "stage", "reconcile");
+        ipLookupErrors = metrics.counter("ddns_ip_lookup_errors_total", "Public IP lookups that no provider answered");
+        ipChanges = metrics.counter("ddns_ip_changes_total", "Times the public IP changed");
+        recordsUpdated = metrics.counter("ddns_records_updated_total", "DNS records pointed at a new IP");
+        recordErrors = metrics.counter("ddns_record_errors_total", "DNS records that could not be looked up or updated");
+    }
+}
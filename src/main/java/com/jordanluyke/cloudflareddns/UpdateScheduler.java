@@ -0,0 +1,104 @@
+package com.jordanluyke.cloudflareddns;
+
+import com.google.inject.Inject;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.subjects.PublishSubject;
+import io.reactivex.rxjava3.subjects.Subject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.inject.Singleton;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when the public IP is next polled. Polls every {@link Config#getUpdateIntervalSeconds()} normally, every
+ * {@link Config#getFastUpdateIntervalSeconds()} for a while after the IP changed or the connection came back, and
+ * backs off exponentially from {@link Config#getRetryIntervalSeconds()} while polls fail. Every delay is randomised by
+ * {@link Config#getIntervalJitter()} so many devices do not poll in lockstep. A wait can be cut short with
+ * {@link #pollNow()}. Each scheduled cycle counts its own failures, so one that keeps failing is backed off without
+ * holding back the others.
+ */
+@Singleton
+public class UpdateScheduler {
+    private static final Logger logger = LogManager.getLogger(UpdateScheduler.class);
+
+    @Inject private Config config;
+
+    private final Subject<Boolean> pollRequests = PublishSubject.<Boolean>create().toSerialized();
+    private final Set<AtomicBoolean> pollRequested = ConcurrentHashMap.newKeySet();
+    private volatile long fastUntil = 0;
+
+    /**
+     * Runs the cycle now and again each time the next poll is due, emitting what every run emits. The next delay is
+     * worked out once a run has finished, so a run that errors is backed off before the next one.
+     */
+    public <T> Observable<T> schedule(Observable<T> cycle) {
+        return Observable.defer(() -> {
+            AtomicInteger failures = new AtomicInteger(0);
+            AtomicBoolean requested = new AtomicBoolean(false);
+            pollRequested.add(requested);
+            return Observable.defer(() -> {
+                        requested.set(false);
+                        return cycle
+                                .doOnComplete(() -> failures.set(0))
+                                .onErrorResumeNext(err -> {
+                                    failures.incrementAndGet();
+                                    return Observable.empty();
+                                });
+                    })
+                    .concatWith(Completable.defer(() -> Completable.timer(getNextDelayMillis(failures.get()), TimeUnit.MILLISECONDS)
+                            .ambWith(Completable.timer(config.getTriggerCoalesceMillis(), TimeUnit.MILLISECONDS)
+                                    .andThen(awaitPollRequest(requested)))))
+                    .repeat()
+                    .doFinally(() -> pollRequested.remove(requested));
+        });
+    }
+
+    /**
+     * Ends the current wait of every scheduled cycle so the next poll runs now. Requests made while a poll is running,
+     * or within {@link Config#getTriggerCoalesceMillis()} of it finishing, are folded into one more poll.
+     */
+    public void pollNow() {
+        pollRequested.forEach(requested -> requested.set(true));
+        pollRequests.onNext(true);
+    }
+
+    /**
+     * Completes on the next poll request, or at once if one arrived since the last poll started.
+     */
+    private Completable awaitPollRequest(AtomicBoolean requested) {
+        return pollRequests.firstElement()
+                .ignoreElement()
+                .ambWith(Completable.defer(() -> requested.get() ? Completable.complete() : Completable.never()));
+    }
+
+    /**
+     * Polls quickly for a while, since more changes often follow a change or a reconnect.
+     */
+    public void onChange() {
+        fastUntil = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getFastUpdateWindowSeconds());
+    }
+
+    private long getNextDelayMillis(int failed) {
+        long delay;
+        if(failed > 0) {
+            long max = TimeUnit.SECONDS.toMillis(config.getMaxRetryIntervalSeconds());
+            delay = TimeUnit.SECONDS.toMillis(config.getRetryIntervalSeconds()) << Math.min(failed - 1, 20);
+            delay = Math.min(delay, max);
+        } else if(System.currentTimeMillis() < fastUntil)
+            delay = TimeUnit.SECONDS.toMillis(config.getFastUpdateIntervalSeconds());
+        else
+            delay = TimeUnit.SECONDS.toMillis(config.getUpdateIntervalSeconds());
+        double jitter = config.getIntervalJitter();
+        if(jitter > 0)
+            delay = Math.round(delay * (1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter)));
+        logger.debug("Next poll in {}ms", delay);
+        return delay;
+    }
+}
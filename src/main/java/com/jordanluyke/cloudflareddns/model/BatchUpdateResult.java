@@ -0,0 +1,19 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+/**
+ * Outcome of one record in a batch update. Either {@code updated} or {@code error} is set.
+ */
+@Getter
+@AllArgsConstructor
+@ToString
+public class BatchUpdateResult {
+    private DnsRecord record;
+    private DnsRecord updated;
+    private Throwable error;
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
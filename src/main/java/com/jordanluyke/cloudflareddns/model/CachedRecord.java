@@ -0,0 +1,18 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class CachedRecord {
+    private String key;
+    private String zoneId;
+    private String id;
+    private String type;
+    private String name;
+    private String content;
+    private long expiresAt;
+}
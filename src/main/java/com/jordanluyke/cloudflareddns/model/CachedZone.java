@@ -0,0 +1,14 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class CachedZone {
+    private String name;
+    private String id;
+    private long expiresAt;
+}
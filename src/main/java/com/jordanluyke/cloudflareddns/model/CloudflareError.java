@@ -0,0 +1,13 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class CloudflareError {
+    private int code;
+    private String message;
+}
@@ -0,0 +1,20 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class CloudflareResponse<T> {
+    private boolean success;
+    private List<CloudflareError> errors = new ArrayList<>();
+    private List<CloudflareError> messages = new ArrayList<>();
+    private T result;
+    @JsonProperty("result_info") private ResultInfo resultInfo;
+}
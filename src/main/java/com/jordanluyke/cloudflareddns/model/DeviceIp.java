@@ -0,0 +1,12 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+@Getter
+@AllArgsConstructor
+@ToString
+@EqualsAndHashCode
+public class DeviceIp {
+    private final IpFamily family;
+    private final String ip;
+}
@@ -0,0 +1,15 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class DnsRecordBatchRequest {
+    private List<DnsRecordRequest> puts = new ArrayList<>();
+}
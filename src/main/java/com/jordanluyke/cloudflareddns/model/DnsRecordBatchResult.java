@@ -0,0 +1,18 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class DnsRecordBatchResult {
+    private List<DnsRecord> deletes = new ArrayList<>();
+    private List<DnsRecord> patches = new ArrayList<>();
+    private List<DnsRecord> puts = new ArrayList<>();
+    private List<DnsRecord> posts = new ArrayList<>();
+}
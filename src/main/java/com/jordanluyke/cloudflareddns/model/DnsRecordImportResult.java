@@ -0,0 +1,14 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class DnsRecordImportResult {
+    @JsonProperty("recs_added") private int recsAdded;
+    @JsonProperty("total_records_parsed") private int totalRecordsParsed;
+}
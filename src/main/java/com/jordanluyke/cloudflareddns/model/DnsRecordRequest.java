@@ -0,0 +1,21 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class DnsRecordRequest {
+    @JsonInclude(JsonInclude.Include.NON_NULL) private String id;
+    private String type;
+    private String name;
+    private String content;
+    private boolean proxied;
+
+    public DnsRecordRequest(String type, String name, String content, boolean proxied) {
+        this(null, type, name, content, proxied);
+    }
+}
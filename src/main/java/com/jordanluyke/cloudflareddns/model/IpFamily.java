@@ -0,0 +1,27 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import io.netty.util.NetUtil;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+
+@Getter
+@AllArgsConstructor
+public enum IpFamily {
+    V4("IPv4", "A"),
+    V6("IPv6", "AAAA");
+
+    private final String label;
+    private final String recordType;
+
+    public boolean isValid(String ip) {
+        return this == V4 ? NetUtil.isValidIpV4Address(ip) : NetUtil.isValidIpV6Address(ip);
+    }
+
+    public boolean matches(InetAddress address) {
+        return this == V4 ? address instanceof Inet4Address : address instanceof Inet6Address;
+    }
+}
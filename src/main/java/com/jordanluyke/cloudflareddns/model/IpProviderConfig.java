@@ -0,0 +1,16 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class IpProviderConfig {
+    private String url;
+    /**
+     * JSON field holding the IP. The whole body is read as plain text when not set.
+     */
+    private String field;
+}
@@ -0,0 +1,23 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class RecordConfig {
+    private String name;
+    private String type = "A";
+    private boolean proxied = true;
+
+    /**
+     * Full record name, accepting either a name relative to the zone or one that already ends with it.
+     */
+    public String getFqdn(String zoneName) {
+        if(name.equals(zoneName) || name.endsWith("." + zoneName))
+            return name;
+        return name + "." + zoneName;
+    }
+}
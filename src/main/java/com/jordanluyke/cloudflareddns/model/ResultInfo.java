@@ -0,0 +1,17 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import lombok.*;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class ResultInfo {
+    private int page;
+    @JsonProperty("per_page") private int perPage;
+    private int count;
+    @JsonProperty("total_count") private int totalCount;
+    @JsonProperty("total_pages") private int totalPages;
+}
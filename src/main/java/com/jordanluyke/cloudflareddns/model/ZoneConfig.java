@@ -0,0 +1,16 @@
+package com.jordanluyke.cloudflareddns.model;
+
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class ZoneConfig {
+    private String name;
+    private List<RecordConfig> records = new ArrayList<>();
+}
@@ -0,0 +1,95 @@
+package com.jordanluyke.cloudflareddns.util;
+
+import io.reactivex.rxjava3.core.Maybe;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.Single;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets. Recording only increments striped counters, so it neither locks nor
+ * allocates and can be called from the event loop.
+ */
+public class Histogram {
+    /**
+     * Upper bounds of the buckets in seconds.
+     */
+    public static final double[] defaultBounds = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    private final double[] bounds;
+    private final long[] boundsNanos;
+    private final LongAdder[] buckets;
+    private final LongAdder sumNanos = new LongAdder();
+
+    public Histogram() {
+        this(defaultBounds);
+    }
+
+    public Histogram(double[] bounds) {
+        this.bounds = bounds.clone();
+        this.boundsNanos = new long[bounds.length];
+        this.buckets = new LongAdder[bounds.length + 1];
+        for(int i = 0; i < bounds.length; i++)
+            boundsNanos[i] = (long) (bounds[i] * TimeUnit.SECONDS.toNanos(1));
+        for(int i = 0; i < buckets.length; i++)
+            buckets[i] = new LongAdder();
+    }
+
+    public void record(long nanos) {
+        int i = 0;
+        while(i < boundsNanos.length && nanos > boundsNanos[i])
+            i++;
+        buckets[i].increment();
+        sumNanos.add(nanos);
+    }
+
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the time from subscription until success or error.
+     */
+    public <T> Single<T> time(Single<T> single) {
+        return Single.defer(() -> {
+            long start = System.nanoTime();
+            return single.doOnEvent((value, err) -> recordSince(start));
+        });
+    }
+
+    public <T> Maybe<T> time(Maybe<T> maybe) {
+        return Maybe.defer(() -> {
+            long start = System.nanoTime();
+            return maybe.doOnEvent((value, err) -> recordSince(start));
+        });
+    }
+
+    public <T> Observable<T> time(Observable<T> observable) {
+        return Observable.defer(() -> {
+            long start = System.nanoTime();
+            return observable.doOnTerminate(() -> recordSince(start));
+        });
+    }
+
+    public double[] getBounds() {
+        return bounds.clone();
+    }
+
+    /**
+     * Cumulative count for each bound, followed by the total count.
+     */
+    public long[] getCumulativeCounts() {
+        long[] counts = new long[buckets.length];
+        long total = 0;
+        for(int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+        return counts;
+    }
+
+    public double getSumSeconds() {
+        return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,21 @@
+package com.jordanluyke.cloudflareddns.util;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import lombok.Getter;
+
+/**
+ * Response whose status the caller could not use, raised where the body is not read into a {@link NettyHttpClient.ClientResponse}.
+ */
+@Getter
+public class HttpStatusException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final HttpHeaders headers;
+
+    public HttpStatusException(int statusCode, HttpHeaders headers, String url) {
+        super("Bad response: " + statusCode + ": " + url);
+        this.statusCode = statusCode;
+        this.headers = headers;
+    }
+}
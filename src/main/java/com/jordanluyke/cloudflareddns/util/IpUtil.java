@@ -0,0 +1,76 @@
+package com.jordanluyke.cloudflareddns.util;
+
+import io.netty.util.NetUtil;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+public class IpUtil {
+
+    /**
+     * Whether the address is globally routable, excluding loopback, link-local, private and carrier-grade NAT ranges.
+     */
+    public static boolean isPublic(InetAddress address) {
+        if(address.isLoopbackAddress()
+                || address.isLinkLocalAddress()
+                || address.isSiteLocalAddress()
+                || address.isAnyLocalAddress()
+                || address.isMulticastAddress())
+            return false;
+        byte[] bytes = address.getAddress();
+        if(address instanceof Inet4Address)
+            // 100.64.0.0/10
+            return !((bytes[0] & 0xff) == 100 && (bytes[1] & 0xc0) == 64);
+        // fc00::/7 unique local
+        return (bytes[0] & 0xfe) != 0xfc;
+    }
+
+    /**
+     * Canonical text form of an IP literal, so the same IPv6 address always compares equal (RFC 5952).
+     */
+    public static String normalize(String ip) {
+        byte[] bytes = NetUtil.createByteArrayFromIpAddressString(ip);
+        if(bytes == null)
+            throw new RuntimeException("Invalid IP: " + ip);
+        try {
+            return NetUtil.toAddressString(InetAddress.getByAddress(bytes));
+        } catch(UnknownHostException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Parses an IP literal with an optional port, e.g. {@code 1.1.1.1}, {@code 1.1.1.1:53} or
+     * {@code [2606:4700:4700::1111]:53}.
+     */
+    public static InetSocketAddress parseSocketAddress(String address, int defaultPort) {
+        String host = address;
+        int port = defaultPort;
+        int colon = address.lastIndexOf(':');
+        try {
+            if(address.startsWith("[")) {
+                int end = address.indexOf(']');
+                if(end == -1)
+                    throw new RuntimeException("Invalid address: " + address);
+                host = address.substring(1, end);
+                if(end + 1 < address.length())
+                    port = Integer.parseInt(address.substring(end + 2));
+            } else if(colon != -1 && colon == address.indexOf(':')) {
+                host = address.substring(0, colon);
+                port = Integer.parseInt(address.substring(colon + 1));
+            }
+        } catch(NumberFormatException e) {
+            throw new RuntimeException("Invalid port: " + address);
+        }
+        byte[] bytes = NetUtil.createByteArrayFromIpAddressString(host);
+        if(bytes == null)
+            throw new RuntimeException("Invalid IP: " + address);
+        try {
+            return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+        } catch(UnknownHostException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.jordanluyke.cloudflareddns.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpResponse;
+import io.reactivex.rxjava3.core.ObservableEmitter;
+
+import java.io.IOException;
+import java.util.function.BiConsumer;
+
+/**
+ * Decodes the elements of an array field in a top level JSON object as the bytes arrive, emitting each element as
+ * soon as it has been parsed. All other top level fields are decoded into an envelope that is passed to the
+ * completion callback along with the response head. The callback may throw to fail the stream. Error responses whose
+ * body is not JSON, such as a proxy's HTML error page, are passed with a null envelope.
+ */
+public class JsonArrayStreamHandler<T, E> implements NettyHttpClient.StreamHandler<T> {
+    private final String arrayField;
+    private final ObjectReader reader;
+    private final ObjectReader envelopeReader;
+    private final BiConsumer<HttpResponse, E> onEnvelope;
+    private final JsonParser parser;
+    private final ByteArrayFeeder feeder;
+    private final TokenBuffer envelope;
+    private HttpResponse response;
+    private boolean invalid = false;
+    private byte[] chunk = new byte[0];
+    private int depth = 0;
+    private boolean atArrayField = false;
+    private boolean inArray = false;
+    private TokenBuffer value;
+
+    public JsonArrayStreamHandler(String arrayField, ObjectReader reader, ObjectReader envelopeReader, BiConsumer<HttpResponse, E> onEnvelope) {
+        this.arrayField = arrayField;
+        this.reader = reader;
+        this.envelopeReader = envelopeReader;
+        this.onEnvelope = onEnvelope;
+        try {
+            this.parser = NodeUtil.mapper.getFactory().createNonBlockingByteArrayParser();
+        } catch(IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+        this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        this.envelope = new TokenBuffer(parser);
+    }
+
+    @Override
+    public void onResponse(HttpResponse response, ObservableEmitter<T> emitter) {
+        this.response = response;
+    }
+
+    @Override
+    public void onContent(ByteBuf content, ObservableEmitter<T> emitter) {
+        int length = content.readableBytes();
+        if(length == 0 || invalid)
+            return;
+        try {
+            if(content.hasArray()) {
+                int offset = content.arrayOffset() + content.readerIndex();
+                feeder.feedInput(content.array(), offset, offset + length);
+            } else {
+                if(chunk.length < length)
+                    chunk = new byte[length];
+                content.getBytes(content.readerIndex(), chunk, 0, length);
+                feeder.feedInput(chunk, 0, length);
+            }
+            parse(emitter);
+        } catch(IOException e) {
+            onInvalid();
+        }
+    }
+
+    @Override
+    public void onComplete(ObservableEmitter<T> emitter) {
+        E _envelope = null;
+        if(!invalid) {
+            try {
+                feeder.endOfInput();
+                parse(emitter);
+                parser.close();
+            } catch(IOException e) {
+                onInvalid();
+            }
+            if(emitter.isDisposed())
+                return;
+            try(JsonParser envelopeParser = envelope.asParser()) {
+                _envelope = envelopeReader.readValue(envelopeParser);
+            } catch(IOException e) {
+                onInvalid();
+            }
+        }
+        onEnvelope.accept(response, _envelope);
+        emitter.onComplete();
+    }
+
+    @Override
+    public void release() {
+        try {
+            parser.close();
+        } catch(IOException ignored) {
+        }
+    }
+
+    /**
+     * A successful response must be JSON, but the body of an error response is ignored if it is not.
+     */
+    private void onInvalid() {
+        if(response.status().code() == 200)
+            throw new RuntimeException("Unable to parse json");
+        invalid = true;
+    }
+
+    private void parse(ObservableEmitter<T> emitter) throws IOException {
+        JsonToken token;
+        while(!emitter.isDisposed() && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+            if(inArray) {
+                if(value == null) {
+                    if(token == JsonToken.END_ARRAY) {
+                        inArray = false;
+                        depth--;
+                        continue;
+                    }
+                    value = new TokenBuffer(parser);
+                }
+                value.copyCurrentEvent(parser);
+                if(token.isStructStart())
+                    depth++;
+                else if(token.isStructEnd())
+                    depth--;
+                if(depth == 2)
+                    emitValue(emitter);
+                continue;
+            }
+
+            if(atArrayField) {
+                atArrayField = false;
+                if(token == JsonToken.START_ARRAY) {
+                    inArray = true;
+                    depth++;
+                    continue;
+                }
+                envelope.writeFieldName(arrayField);
+            } else if(depth == 1 && token == JsonToken.FIELD_NAME && arrayField.equals(parser.getCurrentName())) {
+                // The field is only written to the envelope if its value turns out not to be an array
+                atArrayField = true;
+                continue;
+            }
+
+            envelope.copyCurrentEvent(parser);
+            if(token.isStructStart())
+                depth++;
+            else if(token.isStructEnd())
+                depth--;
+        }
+    }
+
+    private void emitValue(ObservableEmitter<T> emitter) throws IOException {
+        TokenBuffer buffer = value;
+        value = null;
+        try(JsonParser valueParser = buffer.asParser()) {
+            emitter.onNext(reader.readValue(valueParser));
+        }
+    }
+}
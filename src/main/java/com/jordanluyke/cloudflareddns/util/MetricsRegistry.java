@@ -0,0 +1,88 @@
+package com.jordanluyke.cloudflareddns.util;
+
+import javax.inject.Singleton;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Named histograms and counters, rendered in the Prometheus text format. Metrics are looked up once and kept by the
+ * caller, so recording never goes through the registry.
+ */
+@Singleton
+public class MetricsRegistry {
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    /**
+     * Histogram for the series, given labels as alternating names and values.
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) getFamily(name, help, "histogram").series.computeIfAbsent(formatLabels(labels), key -> new Histogram());
+    }
+
+    public LongAdder counter(String name, String help, String... labels) {
+        return (LongAdder) getFamily(name, help, "counter").series.computeIfAbsent(formatLabels(labels), key -> new LongAdder());
+    }
+
+    public String scrape() {
+        StringBuilder sb = new StringBuilder();
+        families.forEach((name, family) -> {
+            sb.append("# HELP ").append(name).append(' ').append(family.help).append('\n');
+            sb.append("# TYPE ").append(name).append(' ').append(family.type).append('\n');
+            family.series.forEach((labels, metric) -> {
+                if(metric instanceof LongAdder) {
+                    sb.append(name).append(wrapLabels(labels)).append(' ').append(((LongAdder) metric).sum()).append('\n');
+                    return;
+                }
+                Histogram histogram = (Histogram) metric;
+                double[] bounds = histogram.getBounds();
+                long[] counts = histogram.getCumulativeCounts();
+                String prefix = labels.isEmpty() ? "" : labels + ",";
+                for(int i = 0; i < counts.length; i++) {
+                    String le = i < bounds.length ? Double.toString(bounds[i]) : "+Inf";
+                    sb.append(name).append("_bucket{").append(prefix).append("le=\"").append(le).append("\"} ").append(counts[i]).append('\n');
+                }
+                sb.append(name).append("_sum").append(wrapLabels(labels)).append(' ').append(histogram.getSumSeconds()).append('\n');
+                sb.append(name).append("_count").append(wrapLabels(labels)).append(' ').append(counts[counts.length - 1]).append('\n');
+            });
+        });
+        return sb.toString();
+    }
+
+    private Family getFamily(String name, String help, String type) {
+        Family family = families.computeIfAbsent(name, key -> new Family(help, type));
+        if(!family.type.equals(type))
+            throw new RuntimeException("Metric already registered as " + family.type + ": " + name);
+        return family;
+    }
+
+    private String formatLabels(String... labels) {
+        if(labels.length % 2 != 0)
+            throw new RuntimeException("Labels must be name and value pairs");
+        StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < labels.length; i += 2) {
+            if(i > 0)
+                sb.append(',');
+            sb.append(labels[i]).append("=\"").append(labels[i + 1]
+                    .replace("\\", "\\\\")
+                    .replace("\"", "\\\"")
+                    .replace("\n", "\\n")).append('"');
+        }
+        return sb.toString();
+    }
+
+    private String wrapLabels(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static class Family {
+        private final String help;
+        private final String type;
+        private final Map<String, Object> series = new ConcurrentSkipListMap<>();
+
+        public Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
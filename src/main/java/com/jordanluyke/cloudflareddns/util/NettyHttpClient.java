@@ -1,44 +1,167 @@
 package com.jordanluyke.cloudflareddns.util;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.google.inject.Inject;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.pool.AbstractChannelPoolHandler;
+import io.netty.channel.pool.AbstractChannelPoolMap;
+import io.netty.channel.pool.ChannelPool;
+import io.netty.channel.pool.ChannelPoolHandler;
+import io.netty.channel.pool.FixedChannelPool;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.HttpPostRequestEncoder;
+import io.netty.handler.codec.http2.*;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
 import io.netty.handler.ssl.SslContext;
 import io.netty.handler.ssl.SslContextBuilder;
-import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.handler.timeout.IdleStateEvent;
+import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.handler.timeout.ReadTimeoutException;
+import io.netty.handler.timeout.ReadTimeoutHandler;
+import io.netty.util.AttributeKey;
+import io.netty.resolver.AddressResolver;
+import io.netty.resolver.AddressResolverGroup;
+import io.netty.resolver.ResolvedAddressTypes;
+import io.netty.resolver.dns.DefaultDnsCache;
+import io.netty.resolver.dns.DnsAddressResolverGroup;
+import io.netty.resolver.dns.DnsCache;
+import io.netty.resolver.dns.DnsNameResolverBuilder;
+import io.netty.resolver.dns.DnsServerAddressStreamProviders;
+import io.netty.resolver.dns.SequentialDnsServerAddressStreamProvider;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GenericFutureListener;
+import io.netty.util.concurrent.Promise;
+import io.netty.util.concurrent.ScheduledFuture;
+import io.reactivex.rxjava3.core.Observable;
+import io.reactivex.rxjava3.core.ObservableEmitter;
 import io.reactivex.rxjava3.core.Single;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import javax.inject.Singleton;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.net.Inet6Address;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLEncoder;
+import java.nio.channels.ClosedChannelException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
  * @author Jordan Luyke <https://keybase.io/jordanluyke>
  */
+@Singleton
 public class NettyHttpClient {
     private static final Logger logger = LogManager.getLogger(NettyHttpClient.class);
+    private static final AttributeKey<PendingResponse<?>> pendingResponseKey = AttributeKey.valueOf("pendingResponse");
+    private static final AttributeKey<Long> connectedAtKey = AttributeKey.valueOf("connectedAt");
+    private static final AttributeKey<Promise<String>> protocolKey = AttributeKey.valueOf("protocol");
+    private static final int sslSessionCacheSize = 256;
+    private static final long sslSessionTimeoutSeconds = TimeUnit.HOURS.toSeconds(1);
+    private static final int maxBodyComponents = 1024;
+    private static final String readTimeoutHandlerName = "readTimeout";
+    private static final long dnsQueryTimeoutMillis = 5000;
+    // Connection Attempt Delay recommended by RFC 8305
+    private static final long connectAttemptDelayMillis = 250;
+    private static final int downloadMaxBufferedBytes = 1024 * 1024;
+    private static final long downloadProgressStepBytes = 1024 * 1024;
+
+    private final EventLoopGroup group = Epoll.isAvailable() ? new EpollEventLoopGroup() : new NioEventLoopGroup();
+    // Disk writes of downloads, kept off the event loop. Threads are only started once a download runs
+    private final EventExecutorGroup fileGroup = new DefaultEventExecutorGroup(2);
+    private final DnsCache dnsCache = new DefaultDnsCache();
+    private List<InetSocketAddress> nameservers = Collections.emptyList();
+    private AddressResolverGroup<?> resolverGroup;
+    private final Bootstrap bootstrap = new Bootstrap()
+            .group(group)
+            .channel(Epoll.isAvailable() ? EpollSocketChannel.class : NioSocketChannel.class)
+            .option(ChannelOption.SO_KEEPALIVE, true);
+    private volatile TrustManagerFactory trustManagerFactory;
+    private volatile boolean http2 = false;
+    private volatile SslContext sslCtx = buildSslContext();
+    private final AbstractChannelPoolMap<PoolKey, MeteredChannelPool> pools = new AbstractChannelPoolMap<>() {
+        @Override
+        protected MeteredChannelPool newPool(PoolKey key) {
+            URI origin = key.getOrigin();
+            Bootstrap b = bootstrap.clone()
+                    .resolver(getResolverGroup())
+                    .remoteAddress(InetSocketAddress.createUnresolved(origin.getHost(), origin.getPort()))
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) Math.min(Integer.MAX_VALUE, key.getConnectTimeoutMillis()));
+            StageMetrics stageMetrics = new StageMetrics(metrics, origin.getHost());
+            boolean negotiate = http2 && HttpScheme.HTTPS.name().toString().equals(origin.getScheme());
+            HttpChannelPool pool = new HttpChannelPool(b, new HttpChannelPoolHandler(origin, key.getConnectTimeoutMillis(), negotiate, stageMetrics), maxConnectionsPerHost, stageMetrics);
+            return negotiate ? new Http2ChannelPool(pool, group.next()) : pool;
+        }
+    };
+    private final MetricsRegistry metrics;
+
+    @Getter @Setter private int maxConnectionsPerHost = 8;
+    @Getter @Setter private long idleTimeout = 60;
+    @Getter @Setter private TimeUnit idleTimeoutUnit = TimeUnit.SECONDS;
+    @Getter @Setter private RequestOptions defaultOptions = new RequestOptions();
+    private volatile ResponseCache responseCache;
+
+    public NettyHttpClient() {
+        this(new MetricsRegistry());
+    }
+
+    @Inject
+    public NettyHttpClient(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
 
     public Single<ClientResponse> get(String url) {
         return get(url, Collections.emptyMap());
@@ -88,15 +211,139 @@ public class NettyHttpClient {
         return request(url, HttpMethod.DELETE, body, headers);
     }
 
-    public Single<ClientResponse> request(String url, HttpMethod method, Map<String, Object> body, Map<String, String> headers) {
-        return Single.defer(() -> {
+    /**
+     * Sends a request. For GET a map body is sent as query params, otherwise the body is serialized as JSON or, when a
+     * form content type header is given, as a urlencoded map.
+     */
+    public Single<ClientResponse> request(String url, HttpMethod method, Object body, Map<String, String> headers) {
+        return request(url, method, body, headers, defaultOptions);
+    }
+
+    public Single<ClientResponse> request(String url, HttpMethod method, Object body, Map<String, String> headers, RequestOptions options) {
+        return stream(url, method, body, headers, AggregatingHandler::new, options)
+                .singleOrError()
+                .flatMap(res -> {
+                    if(res.getBody() == null || res.getStatusCode() == -1) {
+                        res.release();
+                        throw new RuntimeException("Bad response");
+                    }
+                    return Single.just(res);
+                });
+    }
+
+    public <T> Observable<T> stream(String url, HttpMethod method, Object body, Map<String, String> headers, Supplier<StreamHandler<T>> handlerSupplier) {
+        return stream(url, method, body, headers, handlerSupplier, defaultOptions);
+    }
+
+    /**
+     * Sends a request and hands the response to a handler chunk by chunk as it arrives. Disposing the returned
+     * observable before the response is complete closes the connection. Running out of the options' deadline fails
+     * with a {@link TimeoutException} and a stalled read with a {@link SocketTimeoutException}.
+     */
+    public <T> Observable<T> stream(String url, HttpMethod method, Object body, Map<String, String> headers, Supplier<StreamHandler<T>> handlerSupplier, RequestOptions options) {
+        ResponseCache cache = responseCache;
+        Observable<T> exchange;
+        if(cache == null)
+            exchange = exchange(url, method, body, headers, handlerSupplier, options);
+        else if(method == HttpMethod.GET)
+            exchange = cachedExchange(cache, url, body, headers, handlerSupplier, options);
+        else
+            exchange = exchange(url, method, body, headers, () -> new InvalidatingHandler<>(handlerSupplier.get(), cache, url), options);
+        return withDeadline(exchange, url, options);
+    }
+
+    /**
+     * Downloads a body to a file without a deadline, as large files can take any time. Stalled reads still fail
+     * after the default read timeout.
+     */
+    public Observable<DownloadProgress> download(String url, Path path) {
+        return download(url, path, Collections.emptyMap(), defaultOptions.withDeadlineMillis(0));
+    }
+
+    /**
+     * Streams a GET response body into a file, holding at most about {@value #downloadMaxBufferedBytes} bytes in
+     * memory. Reading from the connection is paused while the disk falls behind. The body is written next to the
+     * file under a {@code .part} suffix and moved into place once complete, so a failed or cancelled download never
+     * leaves a truncated file behind. Progress is emitted on the event loop roughly every
+     * {@value #downloadProgressStepBytes} bytes and once more when the file is in place. Any status other than 200
+     * fails the download. The response cache is bypassed.
+     */
+    public Observable<DownloadProgress> download(String url, Path path, Map<String, String> headers, RequestOptions options) {
+        return withDeadline(exchange(url, HttpMethod.GET, null, headers, () -> new DownloadHandler(url, path, fileGroup.next()), options), url, options);
+    }
+
+    /**
+     * Posts a file as multipart/form-data along with the given fields. The file is streamed from disk in chunks rather
+     * than read into memory.
+     */
+    public Single<ClientResponse> upload(String url, Map<String, String> fields, String fileField, Path file, String fileContentType, Map<String, String> headers, RequestOptions options) {
+        return request(url, HttpMethod.POST, new MultipartBody(fields, fileField, file, fileContentType), headers, options);
+    }
+
+    private <T> Observable<T> withDeadline(Observable<T> exchange, String url, RequestOptions options) {
+        if(options.getDeadlineMillis() <= 0)
+            return exchange;
+        return exchange.takeUntil(Observable.timer(options.getDeadlineMillis(), TimeUnit.MILLISECONDS)
+                .flatMap(tick -> Observable.error(new TimeoutException("Request exceeded deadline of " + options.getDeadlineMillis() + "ms: " + url))));
+    }
+
+    private <T> Observable<T> cachedExchange(ResponseCache cache, String url, Object body, Map<String, String> headers, Supplier<StreamHandler<T>> handlerSupplier, RequestOptions options) {
+        return Observable.defer(() -> {
+            String requestUrl = getRequestUrl(url, HttpMethod.GET, body);
+            String key = ResponseCache.getKey(requestUrl, headers);
+            ResponseCache.Entry cached = cache.get(key).orElse(null);
+            if(cached != null && cached.isFresh(options.getCacheMaxAgeMillis())) {
+                cache.getHits().increment();
+                return replay(cached, handlerSupplier.get());
+            }
+            Map<String, String> _headers = new HashMap<>(Optional.ofNullable(headers).orElse(Collections.emptyMap()));
+            if(cached != null) {
+                cached.getEtag().ifPresent(etag -> _headers.put(HttpHeaderNames.IF_NONE_MATCH.toString(), etag));
+                cached.getLastModified().ifPresent(lastModified -> _headers.put(HttpHeaderNames.IF_MODIFIED_SINCE.toString(), lastModified));
+            }
+            return exchange(url, HttpMethod.GET, body, _headers, () -> new CachingHandler<>(handlerSupplier.get(), cache, key, requestUrl, cached, options), options);
+        });
+    }
+
+    /**
+     * Feeds a cached response to a handler on the event loop, as if it had just been received.
+     */
+    private <T> Observable<T> replay(ResponseCache.Entry cached, StreamHandler<T> handler) {
+        return Observable.create(emitter -> group.next().execute(() -> {
+            try {
+                handler.onResponse(cached.toResponse(), emitter);
+                replayBody(cached, handler, emitter);
+                handler.onComplete(emitter);
+            } catch(Exception e) {
+                handler.release();
+                emitter.tryOnError(e);
+            }
+        }));
+    }
+
+    private static <T> void replayBody(ResponseCache.Entry cached, StreamHandler<T> handler, ObservableEmitter<T> emitter) {
+        ByteBuf content = Unpooled.wrappedBuffer(cached.getBody());
+        try {
+            handler.onContent(content, emitter);
+        } finally {
+            content.release();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private String getRequestUrl(String url, HttpMethod method, Object body) {
+        Map<String, Object> params = new HashMap<>();
+        if(method == HttpMethod.GET && body instanceof Map)
+            params = (Map<String, Object>) body;
+        return params.size() > 0 ? url + "?" + toQuerystring(params) : url;
+    }
+
+    private <T> Observable<T> exchange(String url, HttpMethod method, Object body, Map<String, String> headers, Supplier<StreamHandler<T>> handlerSupplier, RequestOptions options) {
+        return Observable.defer(() -> {
             URI uri;
+            URI origin;
             try {
-                Map<String, Object> params = new HashMap<>();
-                if(method == HttpMethod.GET && body != null)
-                    params = body;
-                String _url = params.size() > 0 ? url + "?" + toQuerystring(params) : url;
-                URI u = new URI(_url);
+                URI u = new URI(getRequestUrl(url, method, body));
                 int port = u.getPort();
                 if(port == -1)
                     port = HttpScheme.HTTPS.name().toString().equals(u.getScheme()) ? HttpScheme.HTTPS.port() : HttpScheme.HTTP.port();
@@ -107,146 +354,191 @@ public class NettyHttpClient {
                         u.getPath(),
                         u.getQuery(),
                         null);
+                origin = new URI(u.getScheme(), null, u.getHost(), port, null, null, null);
             } catch(URISyntaxException e) {
                 throw new RuntimeException(e.getMessage());
             }
 
-            SslContext sslCtx;
-            try {
-                if(uri.getPort() == HttpScheme.HTTPS.port())
-                    sslCtx = SslContextBuilder.forClient()
-                            .trustManager(InsecureTrustManagerFactory.INSTANCE).build();
-                else
-                    sslCtx = null;
-            } catch (SSLException e) {
-                throw new RuntimeException(e.getMessage());
-            }
-
-            EventLoopGroup group = new NioEventLoopGroup();
-            ClientResponse res = new ClientResponse();
-            Bootstrap bootstrap = new Bootstrap()
-                    .group(group)
-                    .channel(NioSocketChannel.class)
-                    .handler(new ChannelInitializer<SocketChannel>() {
-                        @Override
-                        protected void initChannel(SocketChannel channel) {
-                            ChannelPipeline pipeline = channel.pipeline();
-                            if(sslCtx != null)
-                                pipeline.addLast(sslCtx.newHandler(channel.alloc(), uri.getHost(), uri.getPort()));
-                            pipeline.addLast(new HttpClientCodec());
-                            pipeline.addLast(new HttpContentDecompressor());
-                            pipeline.addLast(new SimpleChannelInboundHandler<HttpObject>() {
-                                HttpResponse response;
-                                Timer timer;
-                                ByteBuf data = Unpooled.buffer();
-
-                                @Override
-                                public void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
-                                    if(msg instanceof HttpResponse) {
-                                        response = (HttpResponse) msg;
-
-                                        if(isBinaryFile(response.headers())) {
-                                            long contentLength = HttpUtil.getContentLength(response);
-                                            logger.info("Downloading: {}", url);
-                                            timer = new Timer();
-                                            timer.schedule(new TimerTask() {
-                                                @Override
-                                                public void run() {
-                                                    int percent = (int) (((double) data.readableBytes() / contentLength) * 100);
-                                                    logger.info("Progress: {}%", percent);
-                                                }
-                                            }, 0, 3000);
-                                        }
-
-                                        res.setStatusCode(response.status().code());
-                                        res.setHeaders(response.headers()
-                                                .entries()
-                                                .stream()
-                                                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue)));
-                                    } else if(msg instanceof HttpContent) {
-                                        HttpContent content = (HttpContent) msg;
-                                        data = Unpooled.copiedBuffer(data, content.content());
-
-                                        if(content instanceof LastHttpContent) {
-                                            if(timer != null) {
-                                                timer.cancel();
-                                                timer.purge();
-                                                logger.info("Download complete");
-                                            }
-
-                                            res.setBody(data.array());
-                                            data.release();
-                                            ctx.close();
-                                        }
-                                    }
-                                }
-
-                                @Override
-                                public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-                                }
-
-                                private boolean isBinaryFile(HttpHeaders httpHeaders) {
-                                    return httpHeaders.contains(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_OCTET_STREAM, true);
-                                }
-                            });
-                        }
-                    });
-
-            return getChannel(bootstrap.connect(uri.getHost(), uri.getPort()))
-                    .flatMap(channel -> {
-                        Map<String, Object> _body = Optional.ofNullable(body).orElse(new HashMap<>());
+            MeteredChannelPool pool = pools.get(new PoolKey(origin, options.getConnectTimeoutMillis()));
+            StageMetrics stageMetrics = pool.getStageMetrics();
+            return stageMetrics.acquire.time(acquire(pool))
+                    .flatMapObservable(channel -> Observable.<T>create(emitter -> {
                         Map<String, String> _headers = Optional.ofNullable(headers).orElse(new HashMap<>());
-                        byte[] bodyBytes = bodyToBytes(_body, _headers);
-                        ByteBuf content = Unpooled.copiedBuffer(bodyBytes);
                         String path = uri.getPath();
                         if(path == null || path.isEmpty())
                             path = "/";
                         if(uri.getQuery() != null)
                             path += "?" + uri.getQuery();
-                        DefaultFullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, path, content);
+                        HttpPostRequestEncoder encoder = null;
+                        HttpRequest request;
+                        try {
+                            if(body instanceof MultipartBody) {
+                                encoder = ((MultipartBody) body).encode(method, path);
+                                request = encoder.finalizeRequest();
+                            } else {
+                                byte[] bodyBytes = method == HttpMethod.GET ? new byte[0] : bodyToBytes(body, _headers);
+                                ByteBuf content = Unpooled.wrappedBuffer(bodyBytes);
+                                request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, method, path, content);
+                                request.headers().set(HttpHeaderNames.CONTENT_TYPE, _headers.getOrDefault(HttpHeaderNames.CONTENT_TYPE.toString(), HttpHeaderValues.APPLICATION_JSON.toString()));
+                                request.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+                            }
+                        } catch(Exception e) {
+                            // Nothing was sent, so the connection can be reused
+                            if(encoder != null)
+                                encoder.cleanFiles();
+                            pool.release(channel);
+                            throw e;
+                        }
                         request.headers().set(HttpHeaderNames.HOST, uri.getHost());
                         request.headers().set(HttpHeaderNames.ACCEPT_ENCODING, HttpHeaderValues.GZIP);
-                        request.headers().set(HttpHeaderNames.CONTENT_TYPE, _headers.getOrDefault(HttpHeaderNames.CONTENT_TYPE.toString(), HttpHeaderValues.APPLICATION_JSON.toString()));
-                        request.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
                         _headers.forEach((key, value) -> request.headers().set(key, value));
-                        channel.config().setConnectTimeoutMillis((int) TimeUnit.SECONDS.toMillis(2));
-                        return getChannel(channel.writeAndFlush(request));
-                    })
-                    .flatMap(channel -> getChannel(channel.closeFuture()))
-                    .flatMap(Void -> {
-                        if(res.getRawBody() == null || res.getStatusCode() == -1)
-                            throw new RuntimeException("Bad response");
-                        return Single.just(res);
-                    })
-                    .doFinally(group::shutdownGracefully);
+                        HttpUtil.setKeepAlive(request, true);
+
+                        StreamHandler<T> handler = handlerSupplier.get();
+                        handler.onStart(channel);
+                        PendingResponse<T> pending = new PendingResponse<>(channel, pool, handler, emitter, stageMetrics);
+                        emitter.setCancellable(pending::cancel);
+                        channel.attr(pendingResponseKey).set(pending);
+                        // Only guards this exchange, idle pooled connections are left to the idle handler
+                        if(options.getReadTimeoutMillis() > 0)
+                            channel.pipeline().addFirst(readTimeoutHandlerName, new ReadTimeoutHandler(options.getReadTimeoutMillis(), TimeUnit.MILLISECONDS));
+                        GenericFutureListener<Future<Void>> onWritten = future -> {
+                            if(!future.isSuccess())
+                                pending.fail(future.cause());
+                        };
+                        if(encoder == null) {
+                            channel.writeAndFlush(request).addListener(onWritten);
+                            return;
+                        }
+                        HttpPostRequestEncoder _encoder = encoder;
+                        ChannelFuture written = channel.writeAndFlush(request);
+                        // Large bodies are pulled from the encoder chunk by chunk as the channel becomes writable
+                        if(encoder.isChunked())
+                            written = channel.writeAndFlush(encoder);
+                        written.addListener(onWritten)
+                                .addListener(future -> _encoder.cleanFiles());
+                    }));
         });
     }
 
-    private Single<Channel> getChannel(ChannelFuture channelFuture) {
-        return Single.defer(() -> {
-            CompletableFuture<Channel> completableFuture = new CompletableFuture<>();
-            channelFuture.addListener((ChannelFuture future) -> {
-                if(future.isSuccess())
-                    completableFuture.complete(future.channel());
-                else
-                    completableFuture.completeExceptionally(future.cause());
-            });
-            return Single.fromFuture(completableFuture);
-        });
+    /**
+     * Replaces the trust manager used to verify server certificates. Passing null restores the JDK default trust store.
+     * Connections opened before the change keep their existing SSL context.
+     */
+    public void setTrustManagerFactory(TrustManagerFactory trustManagerFactory) {
+        this.trustManagerFactory = trustManagerFactory;
+        sslCtx = buildSslContext();
     }
 
-    private byte[] bodyToBytes(Map<String, Object> body, Map<String, String> headers) {
-        if(body.size() == 0)
+    public boolean isHttp2() {
+        return http2;
+    }
+
+    /**
+     * Offers HTTP/2 through ALPN on HTTPS connections. When the server accepts, requests to that origin share one
+     * connection as concurrent streams, otherwise they fall back to pooled HTTP/1.1 connections. Only origins first
+     * contacted after the change are affected.
+     */
+    public void setHttp2(boolean http2) {
+        this.http2 = http2;
+        sslCtx = buildSslContext();
+    }
+
+    /**
+     * Sends DNS queries to these servers in order instead of the ones in /etc/resolv.conf. Answers are cached for
+     * their TTL. The resolver is built on the first request, so this must be called before then.
+     */
+    public synchronized void setNameservers(List<InetSocketAddress> nameservers) {
+        if(resolverGroup != null)
+            throw new IllegalStateException("Nameservers must be set before the first request");
+        this.nameservers = new ArrayList<>(nameservers);
+    }
+
+    /**
+     * Keeps GET responses in a {@link ResponseCache} of this many bytes. 0 disables caching.
+     */
+    public void setResponseCacheMaxBytes(long maxBytes) {
+        responseCache = maxBytes > 0 ? new ResponseCache(maxBytes, metrics) : null;
+    }
+
+    /**
+     * Drops cached responses whose URL starts with the prefix, e.g. listings changed by a write the server does not
+     * see as touching them.
+     */
+    public void invalidate(String urlPrefix) {
+        ResponseCache cache = responseCache;
+        if(cache != null)
+            cache.invalidate(urlPrefix);
+    }
+
+    /**
+     * Closes all pooled connections and shuts down the event loop.
+     */
+    public void close() {
+        pools.close();
+        synchronized(this) {
+            if(resolverGroup != null)
+                resolverGroup.close();
+        }
+        group.shutdownGracefully();
+        fileGroup.shutdownGracefully();
+    }
+
+    private synchronized AddressResolverGroup<?> getResolverGroup() {
+        if(resolverGroup != null)
+            return resolverGroup;
+        DnsNameResolverBuilder builder = new DnsNameResolverBuilder()
+                .channelType(Epoll.isAvailable() ? EpollDatagramChannel.class : NioDatagramChannel.class)
+                .resolveCache(dnsCache)
+                // Both families are looked up for happy eyeballs, IPv4 first as with the JDK resolver
+                .resolvedAddressTypes(ResolvedAddressTypes.IPV4_PREFERRED)
+                .queryTimeoutMillis(dnsQueryTimeoutMillis)
+                .nameServerProvider(nameservers.isEmpty()
+                        ? DnsServerAddressStreamProviders.platformDefault()
+                        : new SequentialDnsServerAddressStreamProvider(nameservers));
+        resolverGroup = new DnsAddressResolverGroup(builder);
+        return resolverGroup;
+    }
+
+    private SslContext buildSslContext() {
+        try {
+            SslContextBuilder builder = SslContextBuilder.forClient()
+                    .trustManager(trustManagerFactory)
+                    .sessionCacheSize(sslSessionCacheSize)
+                    .sessionTimeout(sslSessionTimeoutSeconds);
+            if(http2)
+                builder.applicationProtocolConfig(new ApplicationProtocolConfig(ApplicationProtocolConfig.Protocol.ALPN,
+                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                        ApplicationProtocolNames.HTTP_2,
+                        ApplicationProtocolNames.HTTP_1_1));
+            return builder.build();
+        } catch(SSLException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    private Single<Channel> acquire(ChannelPool pool) {
+        return Single.create(emitter -> pool.acquire().addListener((Future<Channel> future) -> {
+            if(!future.isSuccess())
+                emitter.onError(future.cause());
+            else if(emitter.isDisposed())
+                pool.release(future.getNow());
+            else
+                emitter.onSuccess(future.getNow());
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private byte[] bodyToBytes(Object body, Map<String, String> headers) {
+        if(body == null || (body instanceof Map && ((Map<?, ?>) body).isEmpty()))
             return new byte[0];
         String contentType = headers.get(HttpHeaderNames.CONTENT_TYPE.toString());
-        if(contentType == null || contentType.equals(HttpHeaderValues.APPLICATION_JSON.toString())) {
-            try {
-                return new ObjectMapper().writeValueAsBytes(body);
-            } catch(JsonProcessingException e) {
-                throw new RuntimeException(e.getMessage());
-            }
-        }
-        return toQuerystring(body).getBytes();
+        if(contentType == null || contentType.equals(HttpHeaderValues.APPLICATION_JSON.toString()))
+            return NodeUtil.writeValueAsBytes(body);
+        if(!(body instanceof Map))
+            throw new RuntimeException("Body must be a map for content type: " + contentType);
+        return toQuerystring((Map<String, Object>) body).getBytes();
     }
 
     private String toQuerystring(Map<String, Object> params) {
@@ -264,28 +556,1145 @@ public class NettyHttpClient {
         }
     }
 
+    /**
+     * Per-host latency of each stage of a request, in the {@code http_client_stage_seconds} histogram.
+     */
+    private static class StageMetrics {
+        private final Histogram acquire;
+        private final Histogram resolve;
+        private final Histogram connect;
+        private final Histogram tls;
+        private final Histogram firstByte;
+        private final Histogram body;
+        private final LongAdder connections;
+        private final LongAdder responses;
+        private final LongAdder errors;
+
+        public StageMetrics(MetricsRegistry metrics, String host) {
+            String stageHelp = "Time spent in each stage of an outgoing HTTP request";
+            acquire = metrics.histogram("http_client_stage_seconds", stageHelp, "host", host, "stage", "acquire");
+            resolve = metrics.histogram("http_client_stage_seconds", stageHelp, "host", host, "stage", "resolve");
+            connect = metrics.histogram("http_client_stage_seconds", stageHelp, "host", host, "stage", "connect");
+            tls = metrics.histogram("http_client_stage_seconds", stageHelp, "host", host, "stage", "tls");
+            firstByte = metrics.histogram("http_client_stage_seconds", stageHelp, "host", host, "stage", "first_byte");
+            body = metrics.histogram("http_client_stage_seconds", stageHelp, "host", host, "stage", "body");
+            connections = metrics.counter("http_client_connections_total", "Connections opened", "host", host);
+            responses = metrics.counter("http_client_responses_total", "Responses received in full", "host", host);
+            errors = metrics.counter("http_client_errors_total", "Requests that failed before the response was received in full", "host", host);
+        }
+    }
+
+    /**
+     * Connections are pooled per origin and connect timeout, as the timeout is fixed when the pool's bootstrap is
+     * built.
+     */
     @Getter
-    @Setter
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static class PoolKey {
+        private final URI origin;
+        private final long connectTimeoutMillis;
+    }
+
+    private interface MeteredChannelPool extends ChannelPool {
+        StageMetrics getStageMetrics();
+    }
+
+    /**
+     * Pool that resolves and connects in separate steps so each can be timed. Connections are raced across all of
+     * the host's addresses, happy eyeballs style (RFC 8305): attempts alternate between address families and start
+     * {@link #connectAttemptDelayMillis} apart, or as soon as the previous attempt fails. The first to connect is
+     * kept and the rest are closed.
+     */
+    private static class HttpChannelPool extends FixedChannelPool implements MeteredChannelPool {
+        @Getter private final StageMetrics stageMetrics;
+
+        public HttpChannelPool(Bootstrap bootstrap, ChannelPoolHandler handler, int maxConnections, StageMetrics stageMetrics) {
+            super(bootstrap, handler, maxConnections);
+            this.stageMetrics = stageMetrics;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected ChannelFuture connectChannel(Bootstrap bs) {
+            EventLoop eventLoop = bs.config().group().next();
+            ConnectFuture future = new ConnectFuture(eventLoop);
+            long resolveStart = System.nanoTime();
+            AddressResolver<SocketAddress> resolver = (AddressResolver<SocketAddress>) bs.config().resolver().getResolver(eventLoop);
+            resolver.resolveAll(bs.config().remoteAddress()).addListener((Future<List<SocketAddress>> resolution) -> {
+                if(!resolution.isSuccess()) {
+                    future.setFailure(resolution.cause());
+                    return;
+                }
+                stageMetrics.resolve.recordSince(resolveStart);
+                new ConnectionRace(bs.clone(eventLoop), interleave(resolution.getNow()), future).attempt();
+            });
+            return future;
+        }
+
+        /**
+         * Orders addresses to alternate between families, starting with the resolver's first choice.
+         */
+        private List<SocketAddress> interleave(List<SocketAddress> addresses) {
+            Map<Boolean, List<SocketAddress>> byFamily = addresses.stream()
+                    .collect(Collectors.partitioningBy(address -> ((InetSocketAddress) address).getAddress() instanceof Inet6Address));
+            Iterator<SocketAddress> first = byFamily.get(((InetSocketAddress) addresses.get(0)).getAddress() instanceof Inet6Address).iterator();
+            Iterator<SocketAddress> second = byFamily.get(!(((InetSocketAddress) addresses.get(0)).getAddress() instanceof Inet6Address)).iterator();
+            List<SocketAddress> interleaved = new ArrayList<>(addresses.size());
+            while(first.hasNext() || second.hasNext()) {
+                if(first.hasNext())
+                    interleaved.add(first.next());
+                if(second.hasNext())
+                    interleaved.add(second.next());
+            }
+            return interleaved;
+        }
+
+        /**
+         * State of one happy eyeballs connect. Every attempt is registered on the same event loop, so the state is
+         * only touched from there.
+         */
+        private class ConnectionRace {
+            private final Bootstrap bootstrap;
+            private final List<SocketAddress> addresses;
+            private final ConnectFuture future;
+            private final List<Channel> attempts = new ArrayList<>();
+            private int failed = 0;
+            private ScheduledFuture<?> nextAttempt;
+
+            public ConnectionRace(Bootstrap bootstrap, List<SocketAddress> addresses, ConnectFuture future) {
+                this.bootstrap = bootstrap;
+                this.addresses = addresses;
+                this.future = future;
+            }
+
+            public void attempt() {
+                if(future.isDone() || attempts.size() == addresses.size())
+                    return;
+                SocketAddress address = addresses.get(attempts.size());
+                long connectStart = System.nanoTime();
+                ChannelFuture registered = bootstrap.register();
+                Channel channel = registered.channel();
+                attempts.add(channel);
+                registered.addListener(registration -> {
+                    if(!registration.isSuccess()) {
+                        onFailure(channel, registration.cause());
+                        return;
+                    }
+                    channel.connect(address).addListener((ChannelFutureListener) connection -> {
+                        if(!connection.isSuccess())
+                            onFailure(channel, connection.cause());
+                        else
+                            onSuccess(channel, connectStart);
+                    });
+                });
+                if(attempts.size() < addresses.size())
+                    nextAttempt = channel.eventLoop().schedule(this::attempt, connectAttemptDelayMillis, TimeUnit.MILLISECONDS);
+            }
+
+            private void onSuccess(Channel channel, long connectStart) {
+                if(future.isDone()) {
+                    channel.close();
+                    return;
+                }
+                cancelNextAttempt();
+                attempts.stream()
+                        .filter(attempt -> attempt != channel)
+                        .forEach(Channel::close);
+                stageMetrics.connect.recordSince(connectStart);
+                stageMetrics.connections.increment();
+                channel.attr(connectedAtKey).set(System.nanoTime());
+                future.setChannel(channel);
+                future.setSuccess(null);
+            }
+
+            private void onFailure(Channel channel, Throwable cause) {
+                channel.close();
+                failed++;
+                if(future.isDone())
+                    return;
+                if(attempts.size() < addresses.size()) {
+                    cancelNextAttempt();
+                    attempt();
+                } else if(failed == addresses.size())
+                    future.setFailure(cause);
+            }
+
+            private void cancelNextAttempt() {
+                if(nextAttempt != null)
+                    nextAttempt.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Connect future whose channel is only known once one of the raced attempts has won.
+     */
+    private static class ConnectFuture extends DefaultPromise<Void> implements ChannelFuture {
+        private volatile Channel channel;
+
+        public ConnectFuture(EventExecutor executor) {
+            super(executor);
+        }
+
+        public void setChannel(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public Channel channel() {
+            return channel;
+        }
+
+        @Override
+        public boolean isVoid() {
+            return false;
+        }
+
+        @Override
+        public ConnectFuture addListener(GenericFutureListener<? extends Future<? super Void>> listener) {
+            super.addListener(listener);
+            return this;
+        }
+
+        @Override
+        @SafeVarargs
+        public final ConnectFuture addListeners(GenericFutureListener<? extends Future<? super Void>>... listeners) {
+            for(GenericFutureListener<? extends Future<? super Void>> listener : listeners)
+                super.addListener(listener);
+            return this;
+        }
+
+        @Override
+        public ConnectFuture removeListener(GenericFutureListener<? extends Future<? super Void>> listener) {
+            super.removeListener(listener);
+            return this;
+        }
+
+        @Override
+        @SafeVarargs
+        public final ConnectFuture removeListeners(GenericFutureListener<? extends Future<? super Void>>... listeners) {
+            for(GenericFutureListener<? extends Future<? super Void>> listener : listeners)
+                super.removeListener(listener);
+            return this;
+        }
+
+        @Override
+        public ConnectFuture sync() throws InterruptedException {
+            super.sync();
+            return this;
+        }
+
+        @Override
+        public ConnectFuture syncUninterruptibly() {
+            super.syncUninterruptibly();
+            return this;
+        }
+
+        @Override
+        public ConnectFuture await() throws InterruptedException {
+            super.await();
+            return this;
+        }
+
+        @Override
+        public ConnectFuture awaitUninterruptibly() {
+            super.awaitUninterruptibly();
+            return this;
+        }
+    }
+
+    private class HttpChannelPoolHandler extends AbstractChannelPoolHandler {
+        private final URI origin;
+        private final boolean ssl;
+        private final long connectTimeoutMillis;
+        private final boolean negotiate;
+        private final StageMetrics stageMetrics;
+
+        public HttpChannelPoolHandler(URI origin, long connectTimeoutMillis, boolean negotiate, StageMetrics stageMetrics) {
+            this.origin = origin;
+            this.ssl = HttpScheme.HTTPS.name().toString().equals(origin.getScheme());
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.negotiate = negotiate;
+            this.stageMetrics = stageMetrics;
+        }
+
+        @Override
+        public void channelCreated(Channel channel) {
+            ChannelPipeline pipeline = channel.pipeline();
+            if(ssl) {
+                // Passing the peer host and port lets the engine resume a cached session for this origin
+                SslHandler sslHandler = sslCtx.newHandler(channel.alloc(), origin.getHost(), origin.getPort());
+                SSLEngine engine = sslHandler.engine();
+                SSLParameters parameters = engine.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                engine.setSSLParameters(parameters);
+                sslHandler.setHandshakeTimeoutMillis(connectTimeoutMillis);
+                sslHandler.handshakeFuture().addListener(handshake -> {
+                    Long connectedAt = channel.attr(connectedAtKey).get();
+                    if(handshake.isSuccess() && connectedAt != null)
+                        stageMetrics.tls.recordSince(connectedAt);
+                });
+                pipeline.addLast(sslHandler);
+            }
+            pipeline.addLast(new IdleStateHandler(0, 0, idleTimeout, idleTimeoutUnit));
+            if(negotiate) {
+                Promise<String> protocol = channel.eventLoop().newPromise();
+                channel.attr(protocolKey).set(protocol);
+                channel.closeFuture().addListener(closed -> protocol.tryFailure(new ClosedChannelException()));
+                pipeline.addLast(new ProtocolNegotiationHandler());
+            } else
+                addHttp1Handlers(pipeline);
+        }
+    }
+
+    private static void addHttp1Handlers(ChannelPipeline pipeline) {
+        pipeline.addLast(new HttpClientCodec());
+        pipeline.addLast(new HttpContentDecompressor());
+        pipeline.addLast(new ChunkedWriteHandler());
+        pipeline.addLast(new ResponseHandler());
+    }
+
+    /**
+     * Completes the channel's protocol promise once ALPN has settled, after setting the pipeline up for it.
+     */
+    private static class ProtocolNegotiationHandler extends ApplicationProtocolNegotiationHandler {
+        public ProtocolNegotiationHandler() {
+            super(ApplicationProtocolNames.HTTP_1_1);
+        }
+
+        @Override
+        protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+            if(ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+                ctx.pipeline().addLast(Http2FrameCodecBuilder.forClient()
+                        .initialSettings(Http2Settings.defaultSettings().pushEnabled(false))
+                        // Streams over the server's limit wait for others to finish instead of failing
+                        .encoderEnforceMaxConcurrentStreams(true)
+                        .build());
+                ctx.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                ctx.pipeline().addLast(new Http2IdleHandler());
+            } else
+                addHttp1Handlers(ctx.pipeline());
+            ctx.channel().attr(protocolKey).get().trySuccess(protocol);
+        }
+
+        @Override
+        protected void handshakeFailure(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+            ctx.channel().attr(protocolKey).get().tryFailure(cause);
+            super.handshakeFailure(ctx, cause);
+        }
+    }
+
+    /**
+     * Last handler of an HTTP/2 connection. Closes the connection once it has been idle with no open streams, or on
+     * an error, which fails every stream still open on it.
+     */
+    private static class Http2IdleHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if(evt instanceof IdleStateEvent) {
+                if(ctx.pipeline().get(Http2FrameCodec.class).connection().numActiveStreams() == 0)
+                    ctx.close();
+            } else
+                super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+
+    /**
+     * Hands out a new stream on a shared HTTP/2 connection for each request. Connections come from the HTTP/1.1 pool
+     * of the origin, which also takes over when the server does not negotiate h2. A connection is held until it
+     * closes and is replaced once the server sends GOAWAY.
+     */
+    private static class Http2ChannelPool implements MeteredChannelPool {
+        private final HttpChannelPool connections;
+        private final EventExecutor executor;
+        private Future<Channel> connection;
+        private boolean http1 = false;
+
+        public Http2ChannelPool(HttpChannelPool connections, EventExecutor executor) {
+            this.connections = connections;
+            this.executor = executor;
+        }
+
+        @Override
+        public StageMetrics getStageMetrics() {
+            return connections.getStageMetrics();
+        }
+
+        @Override
+        public Future<Channel> acquire() {
+            return acquire(executor.newPromise());
+        }
+
+        @Override
+        public Future<Channel> acquire(Promise<Channel> promise) {
+            Future<Channel> parent;
+            synchronized(this) {
+                if(http1)
+                    return acquireHttp1(promise);
+                if(connection == null || (connection.isDone() && !isUsable(connection)))
+                    connection = connect();
+                parent = connection;
+            }
+            parent.addListener((Future<Channel> future) -> {
+                if(!future.isSuccess())
+                    promise.tryFailure(future.cause());
+                else if(future.getNow() == null)
+                    acquire(promise);
+                else
+                    openStream(future.getNow(), promise);
+            });
+            return promise;
+        }
+
+        /**
+         * New connections only get their HTTP/1.1 handlers once the handshake is done, so they are not handed out
+         * before then.
+         */
+        private Future<Channel> acquireHttp1(Promise<Channel> promise) {
+            connections.acquire().addListener((Future<Channel> acquired) -> {
+                if(!acquired.isSuccess()) {
+                    promise.tryFailure(acquired.cause());
+                    return;
+                }
+                Channel channel = acquired.getNow();
+                channel.attr(protocolKey).get().addListener(protocol -> {
+                    if(!protocol.isSuccess()) {
+                        connections.release(channel);
+                        promise.tryFailure(protocol.cause());
+                    } else if(!promise.trySuccess(channel))
+                        connections.release(channel);
+                });
+            });
+            return promise;
+        }
+
+        /**
+         * Completes with the new HTTP/2 connection, or with null when the server chose HTTP/1.1.
+         */
+        private Future<Channel> connect() {
+            Promise<Channel> negotiated = executor.newPromise();
+            connections.acquire().addListener((Future<Channel> acquired) -> {
+                if(!acquired.isSuccess()) {
+                    onConnectFailed(negotiated, acquired.cause());
+                    return;
+                }
+                Channel channel = acquired.getNow();
+                channel.attr(protocolKey).get().addListener((Future<String> protocol) -> {
+                    if(!protocol.isSuccess()) {
+                        connections.release(channel);
+                        onConnectFailed(negotiated, protocol.cause());
+                    } else if(ApplicationProtocolNames.HTTP_2.equals(protocol.getNow())) {
+                        channel.closeFuture().addListener(closed -> {
+                            synchronized(this) {
+                                if(connection == negotiated)
+                                    connection = null;
+                            }
+                            connections.release(channel);
+                        });
+                        negotiated.trySuccess(channel);
+                    } else {
+                        synchronized(this) {
+                            http1 = true;
+                            connection = null;
+                        }
+                        connections.release(channel);
+                        negotiated.trySuccess(null);
+                    }
+                });
+            });
+            return negotiated;
+        }
+
+        private synchronized void onConnectFailed(Promise<Channel> negotiated, Throwable cause) {
+            if(connection == negotiated)
+                connection = null;
+            negotiated.tryFailure(cause);
+        }
+
+        private boolean isUsable(Future<Channel> connection) {
+            if(!connection.isSuccess() || connection.getNow() == null)
+                return false;
+            Channel channel = connection.getNow();
+            Http2FrameCodec codec = channel.pipeline().get(Http2FrameCodec.class);
+            return channel.isActive() && codec != null && !codec.connection().goAwayReceived();
+        }
+
+        private void openStream(Channel parent, Promise<Channel> promise) {
+            new Http2StreamChannelBootstrap(parent)
+                    .handler(new ChannelInitializer<Http2StreamChannel>() {
+                        @Override
+                        protected void initChannel(Http2StreamChannel ch) {
+                            ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(false));
+                            ch.pipeline().addLast(new HttpContentDecompressor());
+                            ch.pipeline().addLast(new ChunkedWriteHandler());
+                            ch.pipeline().addLast(new ResponseHandler());
+                        }
+                    })
+                    .open()
+                    .addListener((Future<Http2StreamChannel> future) -> {
+                        if(!future.isSuccess())
+                            promise.tryFailure(future.cause());
+                        else if(!promise.trySuccess(future.getNow()))
+                            future.getNow().close();
+                    });
+        }
+
+        @Override
+        public Future<Void> release(Channel channel) {
+            return release(channel, executor.newPromise());
+        }
+
+        /**
+         * A stream is finished with once its exchange is, so releasing it closes it.
+         */
+        @Override
+        public Future<Void> release(Channel channel, Promise<Void> promise) {
+            if(!(channel instanceof Http2StreamChannel))
+                return connections.release(channel, promise);
+            channel.close();
+            return promise.setSuccess(null);
+        }
+
+        @Override
+        public void close() {
+            connections.close();
+        }
+    }
+
+    private static class ResponseHandler extends SimpleChannelInboundHandler<HttpObject> {
+        @Override
+        public void channelRead0(ChannelHandlerContext ctx, HttpObject msg) {
+            PendingResponse<?> pending = ctx.channel().attr(pendingResponseKey).get();
+            if(pending == null)
+                return;
+            if(msg instanceof HttpResponse)
+                pending.onResponse((HttpResponse) msg);
+            if(msg instanceof HttpContent)
+                pending.onContent((HttpContent) msg);
+        }
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if(evt instanceof IdleStateEvent) {
+                if(ctx.channel().attr(pendingResponseKey).get() == null)
+                    ctx.close();
+            } else
+                super.userEventTriggered(ctx, evt);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            PendingResponse<?> pending = ctx.channel().attr(pendingResponseKey).get();
+            if(pending != null)
+                pending.fail(new RuntimeException("Connection closed"));
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            PendingResponse<?> pending = ctx.channel().attr(pendingResponseKey).get();
+            if(pending != null)
+                pending.fail(cause instanceof ReadTimeoutException ? new SocketTimeoutException("Read timed out") : cause);
+            else
+                ctx.close();
+        }
+    }
+
+    /**
+     * Receives the parts of a streamed response. All methods are called on the channel's event loop.
+     */
+    public interface StreamHandler<T> {
+        /**
+         * Called with the channel the response will arrive on before the request is sent. A handler that cannot keep
+         * up may turn off its auto read, which is turned back on once the response is complete.
+         */
+        default void onStart(Channel channel) {
+        }
+
+        void onResponse(HttpResponse response, ObservableEmitter<T> emitter);
+
+        /**
+         * Called for each body chunk. The chunk is released once this returns, so it must be retained to be kept.
+         */
+        void onContent(ByteBuf content, ObservableEmitter<T> emitter);
+
+        /**
+         * Called once the full body has been received. The handler is responsible for completing the emitter.
+         */
+        void onComplete(ObservableEmitter<T> emitter);
+
+        /**
+         * Frees any buffered state after the exchange failed or was cancelled.
+         */
+        default void release() {
+        }
+    }
+
+    /**
+     * State of a single request/response exchange on a pooled channel.
+     */
+    private static class PendingResponse<T> {
+        private final Channel channel;
+        private final ChannelPool pool;
+        private final StreamHandler<T> handler;
+        private final ObservableEmitter<T> emitter;
+        private final StageMetrics stageMetrics;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+        private final long sentAt = System.nanoTime();
+        private long receivedAt;
+        private HttpResponse response;
+
+        public PendingResponse(Channel channel, ChannelPool pool, StreamHandler<T> handler, ObservableEmitter<T> emitter, StageMetrics stageMetrics) {
+            this.channel = channel;
+            this.pool = pool;
+            this.handler = handler;
+            this.emitter = emitter;
+            this.stageMetrics = stageMetrics;
+        }
+
+        public void onResponse(HttpResponse response) {
+            if(done.get())
+                return;
+            receivedAt = System.nanoTime();
+            stageMetrics.firstByte.record(receivedAt - sentAt);
+            this.response = response;
+            try {
+                handler.onResponse(response, emitter);
+            } catch(Exception e) {
+                fail(e);
+            }
+        }
+
+        public void onContent(HttpContent content) {
+            if(response == null || done.get())
+                return;
+            try {
+                handler.onContent(content.content(), emitter);
+            } catch(Exception e) {
+                fail(e);
+                return;
+            }
+
+            if(content instanceof LastHttpContent) {
+                if(!done.compareAndSet(false, true))
+                    return;
+                stageMetrics.body.recordSince(receivedAt);
+                stageMetrics.responses.increment();
+                channel.attr(pendingResponseKey).set(null);
+                if(channel.pipeline().get(readTimeoutHandlerName) != null)
+                    channel.pipeline().remove(readTimeoutHandlerName);
+                if(!channel.config().isAutoRead())
+                    channel.config().setAutoRead(true);
+                if(!HttpUtil.isKeepAlive(response))
+                    channel.close();
+                pool.release(channel);
+                try {
+                    handler.onComplete(emitter);
+                } catch(Exception e) {
+                    handler.release();
+                    emitter.tryOnError(e);
+                }
+            }
+        }
+
+        public void fail(Throwable cause) {
+            if(!done.compareAndSet(false, true))
+                return;
+            stageMetrics.errors.increment();
+            cleanup();
+            emitter.tryOnError(cause);
+        }
+
+        public void cancel() {
+            if(done.compareAndSet(false, true))
+                cleanup();
+        }
+
+        private void cleanup() {
+            channel.attr(pendingResponseKey).set(null);
+            channel.close();
+            pool.release(channel);
+            // Handler state is only touched on the event loop
+            channel.eventLoop().execute(handler::release);
+        }
+    }
+
+    /**
+     * Passes a response through to the caller's handler, dropping what was cached for the URL once the response shows
+     * the write succeeded. Only a 2xx or 3xx makes the cached response stale (RFC 7234 section 4.4); an error leaves
+     * the resource as it was.
+     */
+    private static class InvalidatingHandler<T> implements StreamHandler<T> {
+        private final StreamHandler<T> delegate;
+        private final ResponseCache cache;
+        private final String url;
+
+        public InvalidatingHandler(StreamHandler<T> delegate, ResponseCache cache, String url) {
+            this.delegate = delegate;
+            this.cache = cache;
+            this.url = url;
+        }
+
+        @Override
+        public void onStart(Channel channel) {
+            delegate.onStart(channel);
+        }
+
+        @Override
+        public void onResponse(HttpResponse response, ObservableEmitter<T> emitter) {
+            int status = response.status().code();
+            if(status >= 200 && status < 400)
+                cache.invalidate(url);
+            delegate.onResponse(response, emitter);
+        }
+
+        @Override
+        public void onContent(ByteBuf content, ObservableEmitter<T> emitter) {
+            delegate.onContent(content, emitter);
+        }
+
+        @Override
+        public void onComplete(ObservableEmitter<T> emitter) {
+            delegate.onComplete(emitter);
+        }
+
+        @Override
+        public void release() {
+            delegate.release();
+        }
+    }
+
+    /**
+     * Passes a response through to the caller's handler while copying a storable body into the cache. A 304 answers
+     * with the cached response instead.
+     */
+    private static class CachingHandler<T> implements StreamHandler<T> {
+        private final StreamHandler<T> delegate;
+        private final ResponseCache cache;
+        private final String key;
+        private final String url;
+        private final ResponseCache.Entry cached;
+        private final RequestOptions options;
+        private HttpResponse response;
+        private ResponseCache.Entry revalidated;
+        private ByteArrayOutputStream body;
+
+        public CachingHandler(StreamHandler<T> delegate, ResponseCache cache, String key, String url, ResponseCache.Entry cached, RequestOptions options) {
+            this.delegate = delegate;
+            this.cache = cache;
+            this.key = key;
+            this.url = url;
+            this.cached = cached;
+            this.options = options;
+        }
+
+        @Override
+        public void onStart(Channel channel) {
+            delegate.onStart(channel);
+        }
+
+        @Override
+        public void onResponse(HttpResponse response, ObservableEmitter<T> emitter) {
+            if(cached != null && response.status().code() == HttpResponseStatus.NOT_MODIFIED.code()) {
+                revalidated = cached.revalidate(response);
+                cache.put(key, revalidated);
+                cache.getRevalidated().increment();
+                delegate.onResponse(revalidated.toResponse(), emitter);
+                return;
+            }
+            cache.getMisses().increment();
+            this.response = response;
+            if(ResponseCache.isStorable(response))
+                body = new ByteArrayOutputStream();
+            delegate.onResponse(response, emitter);
+        }
+
+        @Override
+        public void onContent(ByteBuf content, ObservableEmitter<T> emitter) {
+            if(revalidated != null)
+                return;
+            if(body != null) {
+                if(body.size() + content.readableBytes() > cache.getMaxBytes())
+                    body = null;
+                else
+                    body.writeBytes(ByteBufUtil.getBytes(content));
+            }
+            delegate.onContent(content, emitter);
+        }
+
+        @Override
+        public void onComplete(ObservableEmitter<T> emitter) {
+            if(revalidated != null) {
+                replayBody(revalidated, delegate, emitter);
+                delegate.onComplete(emitter);
+                return;
+            }
+            // Stored before the caller sees the response, so a request it sends next can be answered from the cache
+            boolean stored = false;
+            if(body != null) {
+                ResponseCache.Entry entry = ResponseCache.Entry.of(url, response.headers(), body.toByteArray());
+                if(entry.hasValidator() || entry.getFreshnessMillis() > 0 || options.getCacheMaxAgeMillis() > 0) {
+                    cache.put(key, entry);
+                    stored = true;
+                }
+            }
+            try {
+                delegate.onComplete(emitter);
+            } catch(RuntimeException e) {
+                if(stored)
+                    cache.remove(key);
+                throw e;
+            }
+        }
+
+        @Override
+        public void release() {
+            body = null;
+            delegate.release();
+        }
+    }
+
+    /**
+     * Collects the whole body into a single {@link ClientResponse}.
+     */
+    private static class AggregatingHandler implements StreamHandler<ClientResponse> {
+        private final ClientResponse res = new ClientResponse();
+        private CompositeByteBuf data;
+
+        @Override
+        public void onResponse(HttpResponse response, ObservableEmitter<ClientResponse> emitter) {
+            res.setStatusCode(response.status().code());
+            res.setHeaders(response.headers()
+                    .entries()
+                    .stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> b)));
+        }
+
+        @Override
+        public void onContent(ByteBuf content, ObservableEmitter<ClientResponse> emitter) {
+            if(data == null)
+                data = content.alloc().compositeBuffer(maxBodyComponents);
+            data.addComponent(true, content.retain());
+        }
+
+        @Override
+        public void onComplete(ObservableEmitter<ClientResponse> emitter) {
+            res.setBody(data != null ? data : Unpooled.EMPTY_BUFFER);
+            data = null;
+            emitter.onNext(res);
+            emitter.onComplete();
+        }
+
+        @Override
+        public void release() {
+            if(data != null) {
+                data.release();
+                data = null;
+            }
+        }
+    }
+
+    /**
+     * Writes a response body to a file on a file executor, pausing reads while too much of it waits to be written.
+     * Everything but the writes runs on the event loop.
+     */
+    private static class DownloadHandler implements StreamHandler<DownloadProgress> {
+        private final String url;
+        private final Path path;
+        private final Path partPath;
+        private final EventExecutor fileExecutor;
+        private Channel channel;
+        private ObservableEmitter<DownloadProgress> emitter;
+        private FileChannel file;
+        private long contentLength = -1;
+        private long written = 0;
+        private long reported = 0;
+        private int buffered = 0;
+        private boolean complete = false;
+        private boolean released = false;
+        private Throwable writeError;
+
+        public DownloadHandler(String url, Path path, EventExecutor fileExecutor) {
+            this.url = url;
+            this.path = path;
+            this.partPath = path.resolveSibling(path.getFileName() + ".part");
+            this.fileExecutor = fileExecutor;
+        }
+
+        @Override
+        public void onStart(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void onResponse(HttpResponse response, ObservableEmitter<DownloadProgress> emitter) {
+            if(response.status().code() != HttpResponseStatus.OK.code())
+                throw new HttpStatusException(response.status().code(), response.headers(), url);
+            this.emitter = emitter;
+            contentLength = HttpUtil.getContentLength(response, -1L);
+            try {
+                file = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            } catch(IOException e) {
+                throw new RuntimeException("Unable to open " + partPath + ": " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void onContent(ByteBuf content, ObservableEmitter<DownloadProgress> emitter) {
+            if(writeError != null)
+                throw new RuntimeException("Unable to write " + partPath + ": " + writeError.getMessage());
+            int length = content.readableBytes();
+            if(length == 0)
+                return;
+            ByteBuf chunk = content.retainedDuplicate();
+            buffered += length;
+            if(buffered >= downloadMaxBufferedBytes)
+                channel.config().setAutoRead(false);
+            fileExecutor.execute(() -> {
+                Throwable error = null;
+                try {
+                    while(chunk.isReadable())
+                        chunk.readBytes(file, chunk.readableBytes());
+                } catch(IOException e) {
+                    error = e;
+                } finally {
+                    chunk.release();
+                }
+                Throwable _error = error;
+                channel.eventLoop().execute(() -> onWritten(length, _error));
+            });
+        }
+
+        @Override
+        public void onComplete(ObservableEmitter<DownloadProgress> emitter) {
+            complete = true;
+            if(buffered == 0)
+                finish();
+        }
+
+        @Override
+        public void release() {
+            released = true;
+            closeFile(true);
+        }
+
+        private void onWritten(int length, Throwable error) {
+            buffered -= length;
+            written += length;
+            if(released)
+                return;
+            if(error != null && writeError == null) {
+                writeError = error;
+                if(complete) {
+                    closeFile(true);
+                    emitter.tryOnError(new RuntimeException("Unable to write " + partPath + ": " + error.getMessage()));
+                    return;
+                }
+            }
+            // The connection is back in the pool once the response is complete and no longer ours to pause or resume
+            if(!complete && !channel.config().isAutoRead() && buffered <= downloadMaxBufferedBytes / 2)
+                channel.config().setAutoRead(true);
+            if(written - reported >= downloadProgressStepBytes) {
+                reported = written;
+                emitter.onNext(new DownloadProgress(written, contentLength));
+            }
+            if(complete && buffered == 0 && writeError == null)
+                finish();
+        }
+
+        private void finish() {
+            fileExecutor.execute(() -> {
+                try {
+                    file.force(false);
+                    file.close();
+                    Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch(IOException e) {
+                    closeFile(true);
+                    channel.eventLoop().execute(() -> emitter.tryOnError(new RuntimeException("Unable to write " + path + ": " + e.getMessage())));
+                    return;
+                }
+                logger.info("Downloaded {} to {}", url, path);
+                channel.eventLoop().execute(() -> {
+                    emitter.onNext(new DownloadProgress(written, contentLength));
+                    emitter.onComplete();
+                });
+            });
+        }
+
+        /**
+         * Runs after any writes already queued, so nothing is written to a closed file.
+         */
+        private void closeFile(boolean delete) {
+            if(file == null)
+                return;
+            fileExecutor.execute(() -> {
+                try {
+                    file.close();
+                    if(delete)
+                        Files.deleteIfExists(partPath);
+                } catch(IOException e) {
+                    logger.warn("Unable to remove {}: {}", partPath, e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Fields and a file to send as multipart/form-data. The file is only referenced, never copied or deleted.
+     */
+    @AllArgsConstructor
+    private static class MultipartBody {
+        private final Map<String, String> fields;
+        private final String fileField;
+        private final Path file;
+        private final String fileContentType;
+
+        public HttpPostRequestEncoder encode(HttpMethod method, String path) {
+            if(!Files.isReadable(file))
+                throw new RuntimeException("Unable to read " + file);
+            HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, path);
+            // Small parts are kept in memory, a larger file is read from disk as the body is written
+            HttpPostRequestEncoder encoder;
+            try {
+                encoder = new HttpPostRequestEncoder(new DefaultHttpDataFactory(DefaultHttpDataFactory.MINSIZE), request, true);
+                for(Map.Entry<String, String> field : fields.entrySet())
+                    encoder.addBodyAttribute(field.getKey(), field.getValue());
+                encoder.addBodyFileUpload(fileField, file.toFile(), fileContentType, false);
+            } catch(HttpPostRequestEncoder.ErrorDataEncoderException e) {
+                throw new RuntimeException(e.getMessage());
+            }
+            return encoder;
+        }
+    }
+
+    /**
+     * Bytes of a download written to disk so far. The content length is -1 when the server did not send one.
+     */
+    @Getter
+    @AllArgsConstructor
     @ToString
+    public static class DownloadProgress {
+        private final long bytesWritten;
+        private final long contentLength;
+
+        /**
+         * Percentage written, or -1 when the content length is unknown.
+         */
+        public int getPercent() {
+            if(contentLength <= 0)
+                return -1;
+            return (int) (bytesWritten * 100 / contentLength);
+        }
+    }
+
+    /**
+     * Response with an aggregated body. The body is held in pooled buffers and must be freed with {@link #release()}
+     * once the caller is done reading it.
+     */
+    @Getter
+    @Setter
     public static class ClientResponse {
         private int statusCode;
-        private byte[] rawBody;
-        private String stringBody;
         private Map<String, String> headers = new HashMap<>();
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private ByteBuf body;
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private String stringBody;
+        @Getter(AccessLevel.NONE)
+        @Setter(AccessLevel.NONE)
+        private final AtomicBoolean released = new AtomicBoolean(false);
 
-        public void setBody(byte[] rawBody) {
-            if(rawBody != null) {
-                this.rawBody = rawBody;
-                this.stringBody = new String(rawBody, StandardCharsets.UTF_8);
+        public void setBody(ByteBuf body) {
+            this.body = body;
+        }
+
+        /**
+         * Value of a header, matching the name case-insensitively.
+         */
+        public Optional<String> getHeader(String name) {
+            return headers.entrySet()
+                    .stream()
+                    .filter(entry -> entry.getKey().equalsIgnoreCase(name))
+                    .map(Map.Entry::getValue)
+                    .findFirst();
+        }
+
+        /**
+         * Read-only view of the body. The view is only valid until the response is released.
+         */
+        public ByteBuf getBody() {
+            ByteBuf _body = getUnreleasedBody();
+            return _body == null ? null : _body.asReadOnly();
+        }
+
+        /**
+         * Read-only view of the body while it is held in a single buffer, valid until the response is released. A body
+         * that arrived in several chunks is copied into a new buffer on each call.
+         */
+        public ByteBuffer getBodyBuffer() {
+            ByteBuf _body = getUnreleasedBody();
+            return _body == null ? null : _body.nioBuffer().asReadOnlyBuffer();
+        }
+
+        public byte[] getRawBody() {
+            ByteBuf _body = getUnreleasedBody();
+            return _body == null ? null : ByteBufUtil.getBytes(_body);
+        }
+
+        public String getStringBody() {
+            if(stringBody == null && body != null) {
+                if(released.get())
+                    throw new IllegalStateException("Response already released");
+                stringBody = body.toString(StandardCharsets.UTF_8);
             }
+            return stringBody;
         }
 
         public JsonNode getJsonBody() {
+            ByteBuf _body = getUnreleasedBody();
             try {
-                return new ObjectMapper().readTree(rawBody);
+                return NodeUtil.mapper.readTree((InputStream) new ByteBufInputStream(_body.duplicate()));
             } catch(IOException e) {
                 throw new RuntimeException("Unable to parse json");
             }
         }
+
+        public <T> T readBody(ObjectReader reader) {
+            ByteBuf _body = getUnreleasedBody();
+            try {
+                return reader.readValue((InputStream) new ByteBufInputStream(_body.duplicate()));
+            } catch(IOException e) {
+                throw new RuntimeException("Unable to parse json");
+            }
+        }
+
+        public void release() {
+            if(body != null && released.compareAndSet(false, true))
+                body.release();
+        }
+
+        /**
+         * The pooled buffers may already hold another response once released, so reading them fails fast instead.
+         */
+        private ByteBuf getUnreleasedBody() {
+            if(released.get())
+                throw new IllegalStateException("Response already released");
+            return body;
+        }
+
+        @Override
+        public String toString() {
+            return "NettyHttpClient.ClientResponse(statusCode=" + statusCode
+                    + ", stringBody=" + (released.get() ? stringBody : getStringBody())
+                    + ", headers=" + headers + ")";
+        }
     }
 }
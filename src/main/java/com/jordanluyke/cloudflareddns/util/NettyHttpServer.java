@@ -0,0 +1,152 @@
+package com.jordanluyke.cloudflareddns.util;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.*;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.*;
+import io.reactivex.rxjava3.core.Completable;
+import io.reactivex.rxjava3.core.Single;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Minimal HTTP/1.1 server. Each request is aggregated and passed to the handler, whose response is written back.
+ */
+public class NettyHttpServer {
+    private static final Logger logger = LogManager.getLogger(NettyHttpServer.class);
+    private static final int maxContentLength = 64 * 1024;
+
+    private final String host;
+    private final int port;
+    private final Function<ServerRequest, Single<ServerResponse>> handler;
+    private final EventLoopGroup group = Epoll.isAvailable() ? new EpollEventLoopGroup(1) : new NioEventLoopGroup(1);
+    private Channel channel;
+
+    public NettyHttpServer(String host, int port, Function<ServerRequest, Single<ServerResponse>> handler) {
+        this.host = host;
+        this.port = port;
+        this.handler = handler;
+    }
+
+    public Completable start() {
+        return Completable.create(emitter -> new ServerBootstrap()
+                .group(group)
+                .channel(Epoll.isAvailable() ? EpollServerSocketChannel.class : NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(maxContentLength));
+                        ch.pipeline().addLast(new RequestHandler());
+                    }
+                })
+                .bind(host, port)
+                .addListener((ChannelFutureListener) future -> {
+                    if(!future.isSuccess()) {
+                        emitter.onError(future.cause());
+                        return;
+                    }
+                    channel = future.channel();
+                    logger.info("Listening on {}", channel.localAddress());
+                    emitter.onComplete();
+                }));
+    }
+
+    /**
+     * Port the server is bound to, which differs from the configured port when that was 0.
+     */
+    public int getPort() {
+        return channel != null ? ((InetSocketAddress) channel.localAddress()).getPort() : port;
+    }
+
+    public void close() {
+        if(channel != null)
+            channel.close();
+        group.shutdownGracefully();
+    }
+
+    private class RequestHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest msg) {
+            boolean keepAlive = HttpUtil.isKeepAlive(msg);
+            QueryStringDecoder decoder = new QueryStringDecoder(msg.uri());
+            ServerRequest request = new ServerRequest(msg.method(),
+                    decoder.path(),
+                    decoder.parameters(),
+                    msg.headers().copy(),
+                    msg.content().toString(StandardCharsets.UTF_8),
+                    (InetSocketAddress) ctx.channel().remoteAddress());
+            Single.defer(() -> handler.apply(request))
+                    .onErrorReturn(err -> {
+                        logger.error("Request failed: {} {}", request.getPath(), err.getMessage());
+                        return ServerResponse.text(500, "Internal server error");
+                    })
+                    .subscribe(res -> {
+                        byte[] bytes = res.getBody().getBytes(StandardCharsets.UTF_8);
+                        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.valueOf(res.getStatusCode()), Unpooled.wrappedBuffer(bytes));
+                        response.headers().set(HttpHeaderNames.CONTENT_TYPE, res.getContentType());
+                        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, bytes.length);
+                        res.getHeaders().forEach((name, value) -> response.headers().set(name, value));
+                        HttpUtil.setKeepAlive(response, keepAlive);
+                        ChannelFuture future = ctx.writeAndFlush(response);
+                        if(!keepAlive)
+                            future.addListener(ChannelFutureListener.CLOSE);
+                    });
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.debug("Connection error: {}", cause.getMessage());
+            ctx.close();
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class ServerRequest {
+        private final HttpMethod method;
+        private final String path;
+        private final Map<String, List<String>> params;
+        private final HttpHeaders headers;
+        private final String body;
+        private final InetSocketAddress remoteAddress;
+
+        public String getParam(String name) {
+            List<String> values = params.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class ServerResponse {
+        private final int statusCode;
+        private final String contentType;
+        private final String body;
+        private final Map<String, String> headers = new HashMap<>();
+
+        public static ServerResponse text(int statusCode, String body) {
+            return new ServerResponse(statusCode, HttpHeaderValues.TEXT_PLAIN + "; charset=utf-8", body);
+        }
+
+        public ServerResponse header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+}
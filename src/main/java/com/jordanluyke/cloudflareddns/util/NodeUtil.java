@@ -1,9 +1,8 @@
 package com.jordanluyke.cloudflareddns.util;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.DeserializationFeature;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -12,6 +11,7 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class NodeUtil {
     private static final Logger logger = LogManager.getLogger(NodeUtil.class);
@@ -20,6 +20,22 @@ public class NodeUtil {
             .registerModule(new Jdk8Module())
             .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
 
+    public static final ObjectWriter writer = mapper.writer();
+
+    private static final Map<JavaType, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    public static ObjectReader reader(Class<?> clazz) {
+        return reader(mapper.constructType(clazz));
+    }
+
+    public static ObjectReader reader(TypeReference<?> typeReference) {
+        return reader(mapper.constructType(typeReference));
+    }
+
+    public static ObjectReader reader(JavaType type) {
+        return readers.computeIfAbsent(type, mapper::readerFor);
+    }
+
     public static boolean isValidJSON(byte[] json) {
         try {
             return !mapper.readTree(json).isNull();
@@ -38,7 +54,7 @@ public class NodeUtil {
 
     public static byte[] writeValueAsBytes(Object o) {
         try {
-            return mapper.writeValueAsBytes(o);
+            return writer.writeValueAsBytes(o);
         } catch(JsonProcessingException e) {
             throw new RuntimeException(e.getMessage());
         }
@@ -80,6 +96,9 @@ public class NodeUtil {
     }
 
     public static Optional<Boolean> getBoolean(String field, JsonNode node) {
+        JsonNode fieldNode = node.get(field);
+        if(fieldNode != null && fieldNode.isBoolean())
+            return Optional.of(fieldNode.booleanValue());
         return getString(field, node).map(Boolean::valueOf);
     }
 
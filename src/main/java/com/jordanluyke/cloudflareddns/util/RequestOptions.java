@@ -0,0 +1,49 @@
+package com.jordanluyke.cloudflareddns.util;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Timeouts of a single request. A value of 0 disables that timeout.
+ */
+@Getter
+@Setter
+@AllArgsConstructor
+@NoArgsConstructor
+@ToString
+public class RequestOptions {
+    /**
+     * Limit on opening a new connection, covering the TCP connect and the TLS handshake. Connections opened with
+     * different limits are pooled separately.
+     */
+    private long connectTimeoutMillis = 5000;
+    /**
+     * Longest wait for the next bytes of the response once the request has been sent.
+     */
+    private long readTimeoutMillis = 30000;
+    /**
+     * Limit on the whole exchange, from waiting for a connection until the last byte of the response.
+     */
+    private long deadlineMillis = 60000;
+    /**
+     * How long a cached GET response is served without asking the server, replacing the lifetime the server gave.
+     * Below 0 the server's Cache-Control and Expires apply, 0 always revalidates. Only used when the client has a
+     * response cache.
+     */
+    private long cacheMaxAgeMillis = -1;
+
+    public RequestOptions(long connectTimeoutMillis, long readTimeoutMillis, long deadlineMillis) {
+        this(connectTimeoutMillis, readTimeoutMillis, deadlineMillis, -1);
+    }
+
+    public RequestOptions withDeadlineMillis(long deadlineMillis) {
+        return new RequestOptions(connectTimeoutMillis, readTimeoutMillis, deadlineMillis, cacheMaxAgeMillis);
+    }
+
+    public RequestOptions withCacheMaxAgeMillis(long cacheMaxAgeMillis) {
+        return new RequestOptions(connectTimeoutMillis, readTimeoutMillis, deadlineMillis, cacheMaxAgeMillis);
+    }
+}
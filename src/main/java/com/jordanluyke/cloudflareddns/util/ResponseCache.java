@@ -0,0 +1,199 @@
+package com.jordanluyke.cloudflareddns.util;
+
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.*;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded LRU cache of GET responses, keyed by URL and the credentials they were fetched with. Responses are stored
+ * unless the server sends {@code Cache-Control: no-store}, and are served without a request while fresh according
+ * to {@code max-age} or {@code Expires}. Stale responses with an {@code ETag} or {@code Last-Modified} are
+ * revalidated with a conditional request. The least recently used responses are evicted once the bodies exceed the
+ * size limit.
+ */
+public class ResponseCache {
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+    @Getter private final LongAdder hits;
+    @Getter private final LongAdder revalidated;
+    @Getter private final LongAdder misses;
+
+    public ResponseCache(long maxBytes, MetricsRegistry metrics) {
+        this.maxBytes = maxBytes;
+        String help = "GET requests by how the response cache answered them";
+        hits = metrics.counter("http_client_cache_requests_total", help, "result", "hit");
+        revalidated = metrics.counter("http_client_cache_requests_total", help, "result", "revalidated");
+        misses = metrics.counter("http_client_cache_requests_total", help, "result", "miss");
+    }
+
+    /**
+     * Requests sent with different credentials never share a response. Only a digest of the credentials is kept.
+     */
+    public static String getKey(String url, Map<String, String> headers) {
+        String authorization = Optional.ofNullable(headers)
+                .flatMap(_headers -> _headers.entrySet()
+                        .stream()
+                        .filter(entry -> entry.getKey().equalsIgnoreCase(HttpHeaderNames.AUTHORIZATION.toString()))
+                        .map(Map.Entry::getValue)
+                        .findFirst())
+                .orElse("");
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(authorization.getBytes(StandardCharsets.UTF_8));
+            StringBuilder scope = new StringBuilder();
+            for(int i = 0; i < 16; i++)
+                scope.append(String.format("%02x", digest[i]));
+            return scope + " " + url;
+        } catch(NoSuchAlgorithmException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized Optional<Entry> get(String key) {
+        return Optional.ofNullable(entries.get(key));
+    }
+
+    public synchronized void put(String key, Entry entry) {
+        if(entry.body.length > maxBytes)
+            return;
+        Entry previous = entries.put(key, entry);
+        if(previous != null)
+            bytes -= previous.body.length;
+        bytes += entry.body.length;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while(bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().body.length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if(entry != null)
+            bytes -= entry.body.length;
+    }
+
+    /**
+     * Drops every response whose URL starts with the prefix, whatever credentials it was fetched with.
+     */
+    public synchronized void invalidate(String urlPrefix) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while(iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if(entry.url.startsWith(urlPrefix)) {
+                bytes -= entry.body.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Whether a 200 response may be stored. Responses that vary on anything but the encoding are not, as the cache
+     * key does not cover the other request headers.
+     */
+    public static boolean isStorable(HttpResponse response) {
+        if(response.status().code() != 200 || getDirectives(response.headers()).contains("no-store"))
+            return false;
+        String vary = response.headers().get(HttpHeaderNames.VARY);
+        return vary == null || Arrays.stream(vary.split(","))
+                .map(String::trim)
+                .allMatch(field -> field.equalsIgnoreCase(HttpHeaderNames.ACCEPT_ENCODING.toString()));
+    }
+
+    private static Set<String> getDirectives(HttpHeaders headers) {
+        Set<String> directives = new HashSet<>();
+        headers.getAll(HttpHeaderNames.CACHE_CONTROL)
+                .forEach(value -> Arrays.stream(value.split(","))
+                        .map(directive -> directive.trim().toLowerCase())
+                        .forEach(directives::add));
+        return directives;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class Entry {
+        private final String url;
+        private final HttpHeaders headers;
+        private final byte[] body;
+        private final long storedAt;
+        private final long initialAgeMillis;
+        private final long freshnessMillis;
+        private final boolean noCache;
+
+        public static Entry of(String url, HttpHeaders headers, byte[] body) {
+            Set<String> directives = getDirectives(headers);
+            long freshnessMillis = directives.stream()
+                    .filter(directive -> directive.startsWith("max-age="))
+                    .map(directive -> parseSeconds(directive.substring("max-age=".length())))
+                    .findFirst()
+                    .orElseGet(() -> {
+                        Date expires = DateFormatter.parseHttpDate(headers.get(HttpHeaderNames.EXPIRES, ""));
+                        Date date = DateFormatter.parseHttpDate(headers.get(HttpHeaderNames.DATE, ""));
+                        if(expires == null)
+                            return 0L;
+                        return Math.max(0, expires.getTime() - (date != null ? date.getTime() : System.currentTimeMillis()));
+                    });
+            long initialAgeMillis = parseSeconds(headers.get(HttpHeaderNames.AGE, "0"));
+            return new Entry(url, headers.copy(), body, System.currentTimeMillis(), initialAgeMillis, freshnessMillis, directives.contains("no-cache"));
+        }
+
+        private static long parseSeconds(String value) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+            } catch(NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Fresh entries are served without asking the server. A max-age of 0 or more from the caller replaces the
+         * lifetime the server gave, otherwise the server's lifetime applies and no-cache forces revalidation.
+         */
+        public boolean isFresh(long maxAgeMillis) {
+            long age = initialAgeMillis + System.currentTimeMillis() - storedAt;
+            if(maxAgeMillis >= 0)
+                return age < maxAgeMillis;
+            return !noCache && age < freshnessMillis;
+        }
+
+        public boolean hasValidator() {
+            return getEtag().isPresent() || getLastModified().isPresent();
+        }
+
+        public Optional<String> getEtag() {
+            return Optional.ofNullable(headers.get(HttpHeaderNames.ETAG));
+        }
+
+        public Optional<String> getLastModified() {
+            return Optional.ofNullable(headers.get(HttpHeaderNames.LAST_MODIFIED));
+        }
+
+        /**
+         * The same body with the validators and freshness of a 304, which restarts its age.
+         */
+        public Entry revalidate(HttpResponse notModified) {
+            HttpHeaders updated = headers.copy();
+            for(CharSequence name : Arrays.asList(HttpHeaderNames.CACHE_CONTROL, HttpHeaderNames.EXPIRES, HttpHeaderNames.DATE, HttpHeaderNames.ETAG, HttpHeaderNames.LAST_MODIFIED, HttpHeaderNames.AGE)) {
+                if(notModified.headers().contains(name))
+                    updated.set(name, notModified.headers().getAll(name));
+            }
+            return of(url, updated, body);
+        }
+
+        public HttpResponse toResponse() {
+            return new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, headers.copy());
+        }
+    }
+}